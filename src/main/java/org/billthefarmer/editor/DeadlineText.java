@@ -0,0 +1,117 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.GetChars;
+import android.text.TextUtils;
+
+import java.util.concurrent.CancellationException;
+
+// DeadlineText
+public class DeadlineText
+    implements CharSequence, GetChars
+{
+    public final static String TAG = "DeadlineText";
+
+    // Characters read between checks
+    public final static int CHECK_COUNT = 4096;
+
+    private final CharSequence text;
+    private final long deadline;
+    private int count;
+
+    // DeadlineText
+    public DeadlineText(CharSequence text, int millis)
+    {
+        this.text = text;
+        deadline = System.nanoTime() + millis * 1000000L;
+    }
+
+    // DeadlineText
+    private DeadlineText(CharSequence text, DeadlineText parent)
+    {
+        this.text = text;
+        deadline = parent.deadline;
+    }
+
+    // charAt
+    @Override
+    public char charAt(int index)
+    {
+        // A regex that backtracks badly reads the same characters
+        // over and over, so it will end up here
+        if (++count >= CHECK_COUNT)
+        {
+            count = 0;
+            check();
+        }
+
+        return text.charAt(index);
+    }
+
+    // length
+    @Override
+    public int length()
+    {
+        return text.length();
+    }
+
+    // subSequence
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        return new DeadlineText(text.subSequence(start, end), this);
+    }
+
+    // toString
+    @Override
+    public String toString()
+    {
+        return text.toString();
+    }
+
+    // getChars
+    @Override
+    public void getChars(int start, int end, char dest[], int offset)
+    {
+        check();
+        TextUtils.getChars(text, start, end, dest, offset);
+    }
+
+    // check
+    private void check()
+    {
+        if (Thread.interrupted())
+            throw new CancellationException();
+
+        if (System.nanoTime() > deadline)
+            throw new TimeoutException();
+    }
+
+    // TimeoutException
+    public static class TimeoutException extends RuntimeException
+    {
+        private final static long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,427 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.GetChars;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.util.HashSet;
+import java.util.Set;
+
+// DeltaSave
+public class DeltaSave
+{
+    public final static String TAG = "DeltaSave";
+
+    // Most bytes after the change to write again if it moves them
+    public final static int MAX_TAIL = 1024 * 1024;
+
+    // Files smaller than this are just written whole
+    public final static int MIN_SIZE = 1024 * 1024;
+
+    public final static int BUFFER_SIZE = 65536;
+
+    public final static String PREFIX = "save-";
+    public final static String SUFFIX = ".rollback";
+
+    public final static int MAGIC = 0x44534156;
+
+    // The rollback files of saves being written
+    private static Set<File> open = new HashSet<>();
+
+    // The document as it is in the file, and how it was written
+    private final PieceTable saved;
+    private final String newline;
+    private final String charset;
+
+    // Whether the file is known to be the saved document encoded
+    private boolean checked;
+
+    // DeltaSave
+    public DeltaSave(PieceTable saved, String newline, String charset,
+                     boolean checked)
+    {
+        this.saved = saved;
+        this.newline = newline;
+        this.charset = charset;
+        this.checked = checked;
+    }
+
+    // write
+    public long write(File file, PieceTable text, String newline,
+                      CharsetEncoder encoder, File dir)
+        throws IOException
+    {
+        // Write just the part of the file that has changed since it was
+        // saved, returns the bytes written, or -1 if the file should
+        // be written whole. The bytes for each character have to be
+        // known without encoding, so only for UTF-8 or one byte
+        // character sets. The bytes written over are kept in a
+        // rollback file in dir until the write is done
+        String charset = encoder.charset().name();
+        boolean utf8 = charset.equals("UTF-8");
+        if (!utf8 && encoder.maxBytesPerChar() != 1)
+            return -1;
+
+        if (!charset.equals(this.charset) || !newline.equals(this.newline))
+            return -1;
+
+        long size = file.length();
+        if (size < MIN_SIZE)
+            return -1;
+
+        // Characters the same at the start and end, not splitting
+        // surrogate pairs
+        int savedLength = saved.length();
+        int length = text.length();
+        int prefix = text.prefix(saved);
+        int suffix = Math.min(text.suffix(saved),
+                              Math.min(savedLength, length) - prefix);
+        if (prefix > 0 &&
+            Character.isHighSurrogate(text.charAt(prefix - 1)))
+            prefix--;
+        if (suffix > 0 &&
+            Character.isLowSurrogate(text.charAt(length - suffix)))
+            suffix--;
+
+        if (checked && prefix == length && length == savedLength)
+            return 0;
+
+        // The file read may not have been the document encoded, the
+        // line endings may have been mixed, or there may have been a
+        // byte order mark, so count it all once
+        int crlf = TextBuffer.CR_LF.equals(newline)? 1: 0;
+        long old = bytes(saved, prefix, savedLength - suffix, utf8, crlf);
+        long before;
+        long after;
+        if (!checked)
+        {
+            before = bytes(saved, 0, prefix, utf8, crlf);
+            after = bytes(saved, savedLength - suffix, savedLength,
+                          utf8, crlf);
+            if (before + old + after != size)
+                return -1;
+
+            checked = true;
+        }
+
+        // Otherwise just count the shorter end
+        else if (prefix < suffix)
+        {
+            before = bytes(saved, 0, prefix, utf8, crlf);
+            after = size - before - old;
+        }
+
+        else
+        {
+            after = bytes(saved, savedLength - suffix, savedLength,
+                          utf8, crlf);
+            before = size - after - old;
+        }
+
+        // Write over the changed part if it's the same size, or
+        // everything after it if that's not too much
+        long changed = bytes(text, prefix, length - suffix, utf8, crlf);
+        int end = (changed == old)? length - suffix: length;
+        if (end == length && after > MAX_TAIL)
+            return -1;
+
+        long written = changed + ((end == length)? after: 0);
+        long replaced = (end == length)? size - before: old;
+        if (written > size / 2 || replaced > size / 2)
+            return -1;
+
+        File rollback = getFile(dir, file.getPath());
+        synchronized (DeltaSave.class)
+        {
+            open.add(rollback);
+        }
+
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw"))
+        {
+            // Keep the bytes about to be written over, and the file
+            // as it was, so an interrupted write can be put back
+            FileChannel channel = output.getChannel();
+            keep(rollback, file, channel, before, replaced,
+                 before + written);
+
+            channel.position(before);
+            TextBuffer.write(channel, new Range(text, prefix, end),
+                             newline, encoder);
+            if (end == length)
+                channel.truncate(before + written);
+            output.getFD().sync();
+            rollback.delete();
+        }
+
+        // Put the file back as it was
+        catch (IOException e)
+        {
+            synchronized (DeltaSave.class)
+            {
+                open.remove(rollback);
+            }
+
+            restore(rollback, file.getPath());
+            throw e;
+        }
+
+        finally
+        {
+            synchronized (DeltaSave.class)
+            {
+                open.remove(rollback);
+            }
+        }
+
+        return written;
+    }
+
+    // keep
+    private static void keep(File rollback, File file, FileChannel channel,
+                             long position, long count, long length)
+        throws IOException
+    {
+        try (FileOutputStream stream = new FileOutputStream(rollback))
+        {
+            DataOutputStream output = new DataOutputStream(stream);
+            output.writeInt(MAGIC);
+            output.writeUTF(file.getPath());
+            output.writeLong(file.lastModified());
+            output.writeLong(channel.size());
+            output.writeLong(length);
+            output.writeLong(position);
+            output.flush();
+
+            FileChannel kept = stream.getChannel();
+            for (long done = 0; done < count;)
+            {
+                long n = channel.transferTo(position + done, count - done,
+                                            kept);
+                if (n <= 0)
+                    throw new IOException("File too short");
+                done += n;
+            }
+            stream.getFD().sync();
+        }
+    }
+
+    // getFile
+    public static File getFile(File dir, String path)
+    {
+        // Named by a hash of the path
+        return new File(dir, PREFIX + Long.toHexString(XXHash64.hash(path)) +
+                        SUFFIX);
+    }
+
+    // rollback
+    public static void rollback(File dir)
+    {
+        // Put back the files left part written when the app stopped
+        File files[] = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file: files)
+        {
+            String name = file.getName();
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                restore(file, null);
+        }
+    }
+
+    // rollback
+    public static void rollback(File dir, String path)
+    {
+        File file = getFile(dir, path);
+        if (file.exists())
+            restore(file, path);
+    }
+
+    // restore
+    private static void restore(File rollback, String path)
+    {
+        // Not while the save is being written
+        synchronized (DeltaSave.class)
+        {
+            if (open.contains(rollback))
+                return;
+
+            try (FileInputStream stream = new FileInputStream(rollback))
+            {
+                DataInputStream input = new DataInputStream(stream);
+                if (input.readInt() != MAGIC)
+                    throw new IOException("Not a rollback file");
+
+                File file = new File(input.readUTF());
+                long modified = input.readLong();
+                long size = input.readLong();
+                long length = input.readLong();
+                long position = input.readLong();
+
+                // Only if it's the file, and it's somewhere between as
+                // it was and as it would have been written
+                long current = file.length();
+                if ((path != null && !path.equals(file.getPath())) ||
+                    !file.exists() || current < Math.min(size, length) ||
+                    current > Math.max(size, length))
+                    throw new IOException("Not the file written");
+
+                try (RandomAccessFile output =
+                     new RandomAccessFile(file, "rw"))
+                {
+                    FileChannel channel = output.getChannel();
+                    FileChannel kept = stream.getChannel();
+                    long count = kept.size() - kept.position();
+                    for (long done = 0; done < count;)
+                    {
+                        long n = channel.transferFrom(kept, position + done,
+                                                      count - done);
+                        if (n <= 0)
+                            throw new IOException("Rollback too short");
+                        done += n;
+                    }
+                    channel.truncate(size);
+                    output.getFD().sync();
+                }
+
+                // So the edit journal fits it again
+                file.setLastModified(modified);
+
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, "Rolled back " + file.getPath());
+            }
+
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+
+            rollback.delete();
+        }
+    }
+
+    // bytes
+    private static long bytes(CharSequence text, int start, int end,
+                              boolean utf8, int crlf)
+    {
+        // Count the encoded bytes a chunk at a time, starting with one
+        // for each character and adding the extra ones. A surrogate
+        // pair is four bytes, or one replaced, and a lone surrogate is
+        // replaced with one byte
+        char buffer[] = new char[BUFFER_SIZE];
+        boolean high = false;
+        long bytes = end - start;
+        for (int i = start; i < end; i += BUFFER_SIZE)
+        {
+            int count = Math.min(BUFFER_SIZE, end - i);
+            TextUtils.getChars(text, i, i + count, buffer, 0);
+
+            for (int j = 0; j < count; j++)
+            {
+                char c = buffer[j];
+                if (c < 0x80)
+                {
+                    if (c == '\n')
+                        bytes += crlf;
+                    high = false;
+                    continue;
+                }
+
+                if (high && Character.isLowSurrogate(c))
+                    bytes += utf8? 2: -1;
+
+                else if (utf8 && !Character.isSurrogate(c))
+                    bytes += (c < 0x800)? 1: 2;
+
+                high = Character.isHighSurrogate(c);
+            }
+        }
+
+        return bytes;
+    }
+
+    // Range
+    private static class Range
+        implements CharSequence, GetChars
+    {
+        private final CharSequence text;
+        private final int start;
+        private final int end;
+
+        // Range
+        private Range(CharSequence text, int start, int end)
+        {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        // charAt
+        @Override
+        public char charAt(int index)
+        {
+            return text.charAt(start + index);
+        }
+
+        // length
+        @Override
+        public int length()
+        {
+            return end - start;
+        }
+
+        // subSequence
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return new Range(text, this.start + start, this.start + end);
+        }
+
+        // toString
+        @Override
+        public String toString()
+        {
+            return text.subSequence(start, end).toString();
+        }
+
+        // getChars
+        @Override
+        public void getChars(int start, int end, char dest[], int offset)
+        {
+            TextUtils.getChars(text, this.start + start, this.start + end,
+                               dest, offset);
+        }
+    }
+}
@@ -0,0 +1,565 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.TextUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// EditJournal
+public class EditJournal
+{
+    public final static String TAG = "EditJournal";
+
+    public final static String PREFIX = "edit-";
+    public final static String SUFFIX = ".journal";
+
+    public final static int MAGIC = 0x45444a4c;
+    public final static int FORMAT = 2;
+    public final static int FLUSH_DELAY = 1000;
+
+    // One thread for all the writing, so it happens in order, even
+    // from an activity that has been recreated
+    private static ScheduledExecutorService writer;
+
+    // Journals open in an editor
+    private static Set<File> open = new HashSet<>();
+
+    // Each document has its own journal, the stream is only used on
+    // the writer thread
+    private final File dir;
+    private File file;
+    private FileOutputStream output;
+
+    // Edits waiting to be written
+    private List<Edit> edits = new ArrayList<>();
+
+    // Edits since a save started
+    private List<Edit> marked;
+    private boolean scheduled;
+
+    // Headers waiting to be written, edits wait for them
+    private int rebasing;
+    private volatile boolean recording;
+
+    // EditJournal
+    public EditJournal(File dir)
+    {
+        this.dir = dir;
+
+        synchronized (EditJournal.class)
+        {
+            if (writer == null)
+                writer = Executors.newSingleThreadScheduledExecutor();
+        }
+    }
+
+    // begin
+    public synchronized void begin(String path, long modified, long length,
+                                   String charset, String newline)
+    {
+        // Start again from the file as saved, which doesn't exist
+        // yet for a new file
+        rebase(path, modified, length, charset, newline, new ArrayList<>());
+    }
+
+    // mark
+    public synchronized void mark()
+    {
+        // Keep the edits from now on, for when the save is done
+        if (recording)
+            marked = new ArrayList<>();
+    }
+
+    // unmark
+    public synchronized void unmark()
+    {
+        marked = null;
+    }
+
+    // rebase
+    public synchronized void rebase(String path, long modified, long length,
+                                    String charset, String newline)
+    {
+        // Start again from the file as saved, with the edits made
+        // since the mark
+        if (marked != null)
+            rebase(path, modified, length, charset, newline, marked);
+    }
+
+    // rebase
+    private void rebase(String path, long modified, long length,
+                        String charset, String newline, List<Edit> list)
+    {
+        // The edits in the list are written after the header
+        edits = new ArrayList<>();
+        marked = null;
+        recording = open(path);
+        if (!recording)
+            return;
+
+        File file = this.file;
+        rebasing++;
+
+        writer.execute(() ->
+        {
+            closeStream();
+            try
+            {
+                output = new FileOutputStream(file);
+                // The text the edits fit is the file decoded with the
+                // charset and newline
+                byte strings[][] =
+                {
+                    path.getBytes(StandardCharsets.UTF_8),
+                    charset.getBytes(StandardCharsets.UTF_8),
+                    newline.getBytes(StandardCharsets.UTF_8)
+                };
+
+                int size = 24;
+                for (byte bytes[]: strings)
+                    size += bytes.length + 4;
+
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                buffer.putInt(MAGIC);
+                buffer.putInt(FORMAT);
+                for (byte bytes[]: strings)
+                {
+                    buffer.putInt(bytes.length);
+                    buffer.put(bytes);
+                }
+                buffer.putLong(modified);
+                buffer.putLong(length);
+                output.write(buffer.array());
+                output.getFD().sync();
+                write(list);
+            }
+
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                closeStream();
+            }
+
+            // Then any edits made since
+            synchronized (this)
+            {
+                rebasing--;
+            }
+
+            write();
+        });
+    }
+
+    // resume
+    public synchronized void resume(String path)
+    {
+        // Carry on after the activity is recreated
+        recording = open(path) && file.exists();
+        if (!recording)
+            return;
+
+        File file = this.file;
+        writer.execute(() ->
+        {
+            closeStream();
+            try
+            {
+                output = new FileOutputStream(file, true);
+            }
+
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // end
+    public synchronized void end()
+    {
+        // Nothing to recover
+        edits = new ArrayList<>();
+        marked = null;
+        recording = false;
+
+        File file = this.file;
+        if (file == null)
+            return;
+
+        writer.execute(() ->
+        {
+            closeStream();
+            file.delete();
+        });
+    }
+
+    // close
+    public synchronized void close()
+    {
+        // Write what is waiting and let go of the journal, it's kept
+        // for recovery or for the recreated activity
+        recording = false;
+        writer.execute(() ->
+        {
+            write();
+            closeStream();
+        });
+
+        synchronized (EditJournal.class)
+        {
+            open.remove(file);
+        }
+
+        file = null;
+    }
+
+    // post
+    public void post(Runnable task)
+    {
+        // Run the task on the writer thread, after what is already
+        // waiting, so a journal isn't begun again before it is read
+        writer.execute(task);
+    }
+
+    // open
+    private boolean open(String path)
+    {
+        // Use the journal for the path, unless another editor has the
+        // document open
+        File file = getFile(dir, path);
+        if (file.equals(this.file))
+            return true;
+
+        // The last one is for a document that has gone
+        File last = this.file;
+        if (last != null)
+            writer.execute(() ->
+            {
+                closeStream();
+                last.delete();
+            });
+
+        synchronized (EditJournal.class)
+        {
+            open.remove(last);
+            this.file = open.add(file)? file: null;
+        }
+
+        return this.file != null;
+    }
+
+    // edit
+    public void edit(CharSequence s, int start, int before, int count)
+    {
+        // Called from onTextChanged(), so just keep the edit, it gets
+        // written later
+        if (!recording)
+            return;
+
+        String text = (count > 0)?
+            TextUtils.substring(s, start, start + count): "";
+
+        synchronized (this)
+        {
+            if (!recording)
+                return;
+
+            Edit edit = new Edit(start, before, text);
+            edits.add(edit);
+            if (marked != null)
+                marked.add(edit);
+            if (!scheduled)
+            {
+                scheduled = true;
+                writer.schedule(() -> write(), FLUSH_DELAY,
+                                TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // flush
+    public void flush()
+    {
+        // Write now, as the app may be about to stop
+        writer.execute(() -> write());
+    }
+
+    // write
+    private void write()
+    {
+        List<Edit> list;
+        synchronized (this)
+        {
+            // Not until the header is written
+            if (rebasing > 0)
+                return;
+
+            list = edits;
+            edits = new ArrayList<>();
+            scheduled = false;
+        }
+
+        try
+        {
+            write(list);
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    // write
+    private void write(List<Edit> list) throws IOException
+    {
+        if (list.isEmpty() || output == null)
+            return;
+
+        // Each edit is the start, the length replaced and the new
+        // text as UTF-8, all written and synced in one go
+        List<byte[]> texts = new ArrayList<>();
+        int length = 0;
+        for (Edit edit: list)
+        {
+            byte bytes[] = edit.text.getBytes(StandardCharsets.UTF_8);
+            texts.add(bytes);
+            length += bytes.length + 12;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < list.size(); i++)
+        {
+            buffer.putInt(list.get(i).start);
+            buffer.putInt(list.get(i).before);
+            buffer.putInt(texts.get(i).length);
+            buffer.put(texts.get(i));
+        }
+
+        output.write(buffer.array());
+        output.getFD().sync();
+    }
+
+    // closeStream
+    private void closeStream()
+    {
+        try
+        {
+            if (output != null)
+                output.close();
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        output = null;
+    }
+
+    // getFile
+    public static File getFile(File dir, String path)
+    {
+        // Named by a hash of the path
+        return new File(dir, PREFIX + Long.toHexString(XXHash64.hash(path)) +
+                        SUFFIX);
+    }
+
+    // journals
+    public static List<File> journals(File dir)
+    {
+        // The journals not open in an editor, left when the app
+        // stopped
+        List<File> list = new ArrayList<>();
+        File files[] = dir.listFiles();
+        if (files == null)
+            return list;
+
+        synchronized (EditJournal.class)
+        {
+            for (File file: files)
+            {
+                String name = file.getName();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX) &&
+                    !open.contains(file))
+                    list.add(file);
+            }
+        }
+
+        return list;
+    }
+
+    // discard
+    public static void discard(File file)
+    {
+        // Unless an editor has opened it since
+        synchronized (EditJournal.class)
+        {
+            if (!open.contains(file))
+                file.delete();
+        }
+    }
+
+    // read
+    public static Recovery read(File file)
+    {
+        // Read what was written, stopping at the end or at an edit
+        // that wasn't written completely
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream input = new DataInputStream
+             (new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT)
+                return null;
+
+            long limit = file.length();
+            Recovery recovery = new Recovery();
+            recovery.file = file;
+            recovery.path = string(input, limit);
+            recovery.charset = string(input, limit);
+            recovery.newline = string(input, limit);
+            recovery.modified = input.readLong();
+            recovery.length = input.readLong();
+
+            try
+            {
+                while (true)
+                {
+                    int start = input.readInt();
+                    int before = input.readInt();
+                    recovery.edits.add(new Edit(start, before,
+                                                string(input, limit)));
+                }
+            }
+
+            catch (IOException e) {}
+
+            return recovery;
+        }
+
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    // string
+    private static String string(DataInputStream input, long limit)
+        throws IOException
+    {
+        int length = input.readInt();
+        if (length < 0 || length > limit)
+            throw new IOException("Bad length " + length);
+
+        byte bytes[] = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Edit
+    private static class Edit
+    {
+        private final int start;
+        private final int before;
+        private final String text;
+
+        // Edit
+        private Edit(int start, int before, String text)
+        {
+            this.start = start;
+            this.before = before;
+            this.text = text;
+        }
+    }
+
+    // Recovery
+    public static class Recovery
+    {
+        public File file;
+        public String path;
+        public String charset;
+        public String newline;
+        public long modified;
+        public long length;
+
+        private List<Edit> edits = new ArrayList<>();
+
+        // edits
+        public int edits()
+        {
+            return edits.size();
+        }
+
+        // fits
+        public boolean fits(String charset, String newline)
+        {
+            // The text was decoded as it was when the edits were made,
+            // or the offsets would be wrong
+            return charset.equals(this.charset) &&
+                newline.equals(this.newline);
+        }
+
+        // matches
+        public boolean matches(File file)
+        {
+            // The file is as it was when the edits were made
+            return file.lastModified() == modified && file.length() == length;
+        }
+
+        // replay
+        public boolean replay(PieceTable table)
+        {
+            // Give up if the edits don't fit the text
+            for (Edit edit: edits)
+            {
+                int end = edit.start + edit.before;
+                if (edit.start < 0 || edit.before < 0 ||
+                    end > table.length())
+                    return false;
+
+                table.replace(edit.start, end, edit.text, 0,
+                              edit.text.length());
+            }
+
+            return true;
+        }
+    }
+}
@@ -39,6 +39,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.print.PrintAttributes;
 import android.print.PrintDocumentAdapter;
@@ -56,6 +57,7 @@ import android.text.style.BackgroundColorSpan;
 import android.text.style.ForegroundColorSpan;
 import android.util.Log;
 import android.view.ActionMode;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -71,6 +73,7 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.HorizontalScrollView;
@@ -90,20 +93,22 @@ import org.commonmark.parser.Parser;
 import org.commonmark.renderer.html.HtmlRenderer;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
 
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 
 import java.text.DateFormat;
 
@@ -120,6 +125,11 @@ import java.util.UUID;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -134,10 +144,16 @@ public class Editor extends Activity
     public final static String MATCH = "match";
     public final static String CHANGED = "changed";
     public final static String CONTENT = "content";
+    public final static String FILE = "file";
     public final static String MODIFIED = "modified";
+    public final static String FILE_SIZE = "fileSize";
+    public final static String FILE_HASH = "fileHash";
+    public final static String NEWLINE = "newline";
     public final static String MONOSPACE = "monospace";
 
+    public final static String PREF_BUDGET = "pref_budget";
     public final static String PREF_FILE = "pref_file";
+    public final static String PREF_FOLLOW = "pref_follow";
     public final static String PREF_HIGH = "pref_high";
     public final static String PREF_PATHS = "pref_paths";
     public final static String PREF_SAVE = "pref_save";
@@ -155,6 +171,10 @@ public class Editor extends Activity
 
     public final static String NEW_FILE = "Untitled.txt";
     public final static String EDIT_FILE = "Editor.txt";
+    public final static String UNDO_PREFIX = "undo";
+    public final static String UNDO_SUFFIX = ".journal";
+    public final static String SAVE_PREFIX = "save";
+    public final static String TEMP_SUFFIX = ".tmp";
     public final static String DOT_HTML = ".html";
 
     public final static String TEXT_HTML = "text/html";
@@ -176,212 +196,28 @@ public class Editor extends Activity
         "org.billthefarmer.editor.OPEN_NEW";
     public final static String PACKAGE = "package:";
 
-    public final static String CC_EXT =
-        "\\.(c(c|pp|xx|\\+\\+)?|dart|go|h|java|js|kt|m|py|swift|rs)";
-
-    public final static String HTML_EXT = "\\.html?";
-
-    public final static String CSS_EXT = "\\.css?";
-
-    public final static String ORG_EXT = "\\.org";
-
-    public final static String MD_EXT = "\\.md";
-
-    public final static String SH_EXT = "\\.sh";
-
-    // Syntax patterns
-    public final static Pattern KEYWORDS = Pattern.compile
-        ("\\b(abstract|and|arguments|as(m|sert|sociativity|ync)?|await|auto|" +
-         "base|break|" +
-         "case|catch|chan|char|class|con(st|tinue|venience)|continue|" +
-         "covariant|crate|" +
-         "de(bugger|f|fault|fer|fered|in|init|l|lete)|didset|do(ne)?|" +
-         "dyn(amic)?" +
-         "(type)?|el(if|se)|enum|esac|eval|ex(cept|ec|plicit|port|" +
-         "tends|tension|tern)|factory|fal(lthrough|se)|fi(nal|nally)?|fn|for|" +
-         "friend|from|fun(c(tion)?)?|get|global|go(to)?|hide|if|" +
-         "im(pl|plements|port)|in(fix|it|line|out|stanceof|terface|" +
-         "ternal)?|is|la(mbda|te|zy)|left|let|library|lo(cal|oop)|ma(p|" +
-         "tch)|mut(able|ating)|" +
-         "namespace|native|new|nil|none|nonmutating|not|null|of|on|" +
-         "operator|optional|or|override|package|part|pass|postfix|" +
-         "pre(cedence|fix)|print|private|prot(ected|ocol)|pub(lic)?|" +
-         "raise|range|re(f|gister|quired|throw|turn)|right|se(lect|aled|lf)|" +
-         "set|show|signed|sizeof|static|strictfp|struct|subscript|super|" +
-         "switch|sync(hronized)?|template|th(en|is|rows?)|transient|" +
-         "true|try|type(alias|def|id|name|of)?|un(ion|owned|safe|signed)|" +
-         "us(e|ing)|va(l|r)|virtual|void|volatile|weak|wh(en|ere|ile)|" +
-         "willset|with|yield)\\b", Pattern.MULTILINE);
-
-    public final static Pattern TYPES = Pattern.compile
-        ("\\b(j?bool(ean)?|(u|j)?(byte|char|double|float|int(eger)?|" +
-         "long|short))\\b", Pattern.MULTILINE);
-
-    public final static Pattern ANNOTATION =
-        Pattern.compile("@\\b[A-Za-z]+\\b", Pattern.MULTILINE);
-
-    public final static Pattern CC_COMMENT = Pattern.compile
-        ("//.*$|(\"(?:\\\\[^\"]|\\\\\"|.)*?\")|(?s)/\\*.*?\\*/",
-         Pattern.MULTILINE);
-
-    public final static Pattern CLASS = Pattern.compile
-        ("\\b[A-Z][A-Za-z0-9_]+\\b", Pattern.MULTILINE);
-
-    public final static Pattern CONSTANT = Pattern.compile
-        ("\\b(([A-Z][A-Z0-9_]+)|(k[A-Z][A-Za-z0-9]+))\\b",
-         Pattern.MULTILINE);
-
-    public final static Pattern OPERATOR = Pattern.compile
-        ("[+-=:;<>|!%^&*/?]+", Pattern.MULTILINE);
-
-    public final static Pattern NUMBER = Pattern.compile
-        ("\\b\\d+(\\.\\d*)?(e(\\+|\\-)?\\d+)?\\b",
-         Pattern.MULTILINE);
-
-    public final static Pattern QUOTED = Pattern.compile
-        // "'([^\\\\']+|\\\\([btnfr\"'\\\\]|" +
-        // "[0-3]?[0-7]{1,2}|u[0-9a-fA-F]{4}))*'|" +
-        ("\"([^\\\\\"]+|\\\\([btnfr\"'\\\\]|" +
-         "[0-3]?[0-7]{1,2}|u[0-9a-fA-F]{4}))*\"",
-         Pattern.MULTILINE);
-
-    public final static Pattern HTML_TAGS = Pattern.compile
-        ("\\b(html|base|head|link|meta|style|title|body|address|article|" +
-         "aside|footer|header|h\\d|hgroup|main|nav|section|blockquote|dd|" +
-         "dir|div|dl|dt|figcaption|figure|hr|li|main|ol|p|pre|ul|a|abbr|" +
-         "b|bdi|bdo|br|cite|code|data|dfn|em|i|kbd|mark|q|rb|rp|rt|rtc|" +
-         "ruby|s|samp|small|span|strong|sub|sup|time|tt|u|var|wbr|area|" +
-         "audio|img|map|track|video|applet|embed|iframe|noembed|object|" +
-         "param|picture|source|canvas|noscript|script|del|ins|caption|" +
-         "col|colgroup|table|tbody|td|tfoot|th|thead|tr|button|datalist|" +
-         "fieldset|form|input|label|legend|meter|optgroup|option|output|" +
-         "progress|select|textarea|details|dialog|menu|menuitem|summary|" +
-         "content|element|shadow|slot|template|acronym|applet|basefont|" +
-         "bgsound|big|blink|center|command|content|dir|element|font|" +
-         "frame|frameset|image|isindex|keygen|listing|marquee|menuitem|" +
-         "multicol|nextid|nobr|noembed|noframes|plaintext|shadow|spacer|" +
-         "strike|tt|xmp|doctype)\\b",
-         Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
-
-    public final static Pattern HTML_ATTRS = Pattern.compile
-        ("\\b(accept|accesskey|action|align|allow|alt|async|" +
-         "auto(capitalize|complete|focus|play)|background|" +
-         "bgcolor|border|buffered|challenge|charset|checked|cite|" +
-         "class|code(base)?|color|cols|colspan|content(" +
-         "editable)?|contextmenu|controls|coords|crossorigin|" +
-         "csp|data|datetime|decoding|def(ault|er)|dir|dirname|" +
-         "disabled|download|draggable|dropzone|enctype|enterkeyhint|" +
-         "equiv|for|form(action|novalidate)?|headers|height|" +
-         "hidden|high|href(lang)?|http|icon|id|importance|" +
-         "inputmode|integrity|intrinsicsize|ismap|itemprop|keytype|" +
-         "kind|label|lang|language|list|loading|loop|low|manifest|" +
-         "max|maxlength|media|method|min|minlength|multiple|muted|" +
-         "name|novalidate|open|optimum|pattern|ping|placeholder|" +
-         "poster|preload|property|radiogroup|readonly|referrerpolicy|" +
-         "rel|required|reversed|rows|rowspan|sandbox|scope|scoped|" +
-         "selected|shape|size|sizes|slot|span|spellcheck|src|srcdoc|" +
-         "srclang|srcset|start|step|style|summary|tabindex|target|" +
-         "title|translate|type|usemap|value|width|wrap)\\b",
-         Pattern.MULTILINE);
-
-    public final static Pattern HTML_COMMENT =
-        Pattern.compile("<!--.*?-->", Pattern.MULTILINE);
-
-    public final static Pattern CSS_STYLES = Pattern.compile
-        ("\\b(action|active|additive|adjust|after|align|all|alternates|" +
-         "animation|annotation|area|areas|as|asian|attachment|attr|" +
-         "auto|backdrop|backface|background|basis|before|behavior|" +
-         "bezier|bidi|blend|block|blur|border|both|bottom|box|break|" +
-         "brightness|calc|caps|caption|caret|cells|center|ch|change|" +
-         "character|charset|checked|child|circle|clamp|clear|clip|" +
-         "cm|collapse|color|column|columns|combine|composite|conic|" +
-         "content|contrast|count|counter|counters|cross|cubic|cue|" +
-         "cursor|decoration|default|deg|delay|dir|direction|" +
-         "disabled|display|dpcm|dpi|dppx|drop|duration|east|element|" +
-         "ellipse|em|emphasis|empty|enabled|end|env|events|ex|face|" +
-         "fade|fallback|family|feature|fill|filter|first|fit|flex|" +
-         "float|flow|focus|font|format|forms|fr|frames|fullscreen|" +
-         "function|gap|grad|gradient|grayscale|grid|grow|hanging|" +
-         "height|historical|hover|hsl|hsla|hue|hyphens|hz|image|import|" +
-         "in|increment|indent|indeterminate|index|inherit|initial|" +
-         "inline|inset|inside|invalid|invert|isolation|items|" +
-         "iteration|justify|khz|kerning|keyframes|lang|language|" +
-         "last|layout|leader|left|letter|ligatures|line|linear|link|" +
-         "list|local|margin|mask|matrix|matrix3d|max|media|min|" +
-         "minmax|mix|mm|mode|ms|name|namespace|negative|none|not|nth|" +
-         "numeric|object|of|offset|only|opacity|optical|optional|" +
-         "order|orientation|origin|ornaments|orphans|out|outline|" +
-         "outset|outside|overflow|override|pad|padding|page|path|pc|" +
-         "perspective|place|placeholder|play|pointer|polygon|" +
-         "position|prefix|property|pt|punctuation|px|q|quotes|rad|" +
-         "radial|radius|range|read|rect|relative|rem|rendering|repeat|" +
-         "repeating|required|reset|resize|revert|rgb|rgba|right|" +
-         "root|rotate|rotate3d|rotatex|rotatey|rotatez|row|rows|" +
-         "rule|s|saturate|scale|scale3d|scalex|scaley|scalez|scope|" +
-         "scroll|scrollbar|selection|self|sepia|set|settings|shadow|" +
-         "shape|shrink|side|size|sizing|skew|skewx|skewy|slice|" +
-         "slotted|snap|source|space|spacing|span|speak|src|start|" +
-         "state|static|steps|stop|stretch|style|styleset|stylistic|suffix|" +
-         "supports|swash|symbols|synthesis|system|tab|table|target|" +
-         "template|text|threshold|timing|top|touch|transform|" +
-         "transition|translate|translate3d|translatex|translatey|" +
-         "translatez|turn|type|underline|unicode|unset|upright|url|" +
-         "user|valid|values|var|variant|variation|vertical|vh|" +
-         "viewport|visibility|visited|vmax|vmin|vw|weight|white|" +
-         "widows|width|will|word|wrap|write|writing|x|y|z|zoom)\\b",
-         Pattern.MULTILINE);
-
-    public final static Pattern CSS_HEX = Pattern.compile
-        ("#\\b[A-Fa-f0-9]+\\b", Pattern.MULTILINE);
-
-    public final static Pattern ORG_HEADER = Pattern.compile
-        ("(^\\*+ +.+$)|(^#\\+.+$)", Pattern.MULTILINE);
-
-    public final static Pattern ORG_LINK = Pattern.compile
-        ("\\[\\[.*?\\]\\]", Pattern.MULTILINE);
-
-    public final static Pattern ORG_EMPH = Pattern.compile
-        ("(([*~/+=]+)\\b(\\w| )+?\\b\\2)|(\\b(_{1,2})(\\w| )+?\\5\\b)",
-         Pattern.MULTILINE);
-
-    public final static Pattern ORG_COMMENT = Pattern.compile
-        ("(^# .*$)|(@@.*?@@)", Pattern.MULTILINE);
-
-    public final static Pattern MD_HEADER = Pattern.compile
-        ("(^.+\\s+-+$)|(^.+\\s+=+$)|(^#+ +.+$)", Pattern.MULTILINE);
-
-    public final static Pattern MD_LINK = Pattern.compile
-        ("(\\!?\\[.+\\] *\\(.+\\))|(!?\\[.+\\] *\\[.+\\])|" +
-         "( *\\[.+\\]: +.+$)", Pattern.MULTILINE);
-
-    public final static Pattern MD_EMPH = Pattern.compile
-        ("(([*~]{1,2})\\b(\\w| )+?\\b\\2)|(\\b(_{1,2})(\\w| )+?\\5\\b)",
-         Pattern.MULTILINE);
-
-    public final static Pattern MD_CODE = Pattern.compile
-        ("(^ {4,}.+$)|(`.+?`)", Pattern.MULTILINE);
-
-    public final static Pattern SH_VAR = Pattern.compile
-        ("(\\$\\b\\w+\\b)|(\\$\\{.+?\\})|(\\$\\(.+?\\))", Pattern.MULTILINE);
-
-    public final static Pattern SH_COMMENT = Pattern.compile
-        ("#.*$", Pattern.MULTILINE);
-
     public final static Pattern MODE_PATTERN = Pattern.compile
         ("^\\S+\\s+ed:(.+)$", Pattern.MULTILINE);
     public final static Pattern OPTION_PATTERN = Pattern.compile
         ("(\\s+(no)?(vw|ww|sg|cs|hs|th|ts|tf)(:\\w)?)", Pattern.MULTILINE);
-    public final static Pattern WORD_PATTERN = Pattern.compile
-        ("\\w+", Pattern.MULTILINE);
 
     public final static int LAST_SIZE = 256;
     public final static int MENU_SIZE = 192;
     public final static int FIRST_SIZE = 256;
     public final static int TOO_LARGE = 524288;
+    public final static int MEMORY_FACTOR = 10;
     public final static int FOLDER_OFFSET = 0x7d000000;
     public final static int POSITION_DELAY = 128;
+    public final static int LOAD_FIRST = 65536;
+    public final static int LOAD_BATCH = 262144;
     public final static int UPDATE_DELAY = 128;
     public final static int FIND_DELAY = 128;
+    public final static int FIND_THREADS = 4;
+    public final static int FOUND_COLOUR = 0x7fffff00;
+    public final static int BUDGET = 2000;
+    public final static int AUTO_SAVE_DELAY = 5000;
+    public final static int AUTO_SAVE_CHANGES = 65536;
+    public final static int WATCH_DELAY = 500;
     public final static int MAX_PATHS = 10;
 
     public final static int REQUEST_OPEN = 1;
@@ -407,15 +243,6 @@ public class Editor extends Activity
     private final static int SANS   = 3;
     private final static int SERIF  = 4;
 
-    private final static int NO_SYNTAX   = 0;
-    private final static int CC_SYNTAX   = 1;
-    private final static int HTML_SYNTAX = 2;
-    private final static int CSS_SYNTAX  = 3;
-    private final static int ORG_SYNTAX  = 4;
-    private final static int MD_SYNTAX   = 5;
-    private final static int SH_SYNTAX   = 6;
-    private final static int DEF_SYNTAX  = 7;
-
     private Uri uri;
     private File file;
     private String path;
@@ -428,10 +255,22 @@ public class Editor extends Activity
     private ScrollView scrollView;
     private Runnable updateHighlight;
     private Runnable updateWordCount;
+    private Runnable autoSave;
+    private Runnable checkFile;
 
     private ScaleGestureDetector scaleDetector;
     private QueryTextListener queryTextListener;
     private ExecutorService executor;
+    private ExecutorService lexer;
+    private ForkJoinPool findPool;
+
+    // The text view's text in step, sharing the text as read, so
+    // saves and background work can have a snapshot of it
+    private PieceTable document;
+
+    private DeltaSave deltaSave;
+    private Highlighter highlighter;
+    private Loader loader;
 
     private Map<String, Integer> pathMap;
     private List<String> removeList;
@@ -440,6 +279,7 @@ public class Editor extends Activity
 
     private boolean last = false;
     private boolean save = false;
+    private boolean follow = false;
     private boolean edit = false;
     private boolean view = false;
 
@@ -447,14 +287,41 @@ public class Editor extends Activity
     private boolean suggest = true;
 
     private boolean changed = false;
+    private int edits;
+    private int saving;
+    private int unsaved;
 
+    // The hash of the text last read or saved, and the file and
+    // encoding, only used on the executor thread
+    private long hash;
+    private String hashKey;
+
+    private boolean loading = false;
+    private boolean highlighting = false;
+    private boolean rehighlight = false;
+
+    private String newline = TextBuffer.LF;
     private long modified;
+    private long fileSize;
+    private long fileHash;
+    private long asked;
+    private long firstPaint;
+    private int position = -1;
+    private int select = -1;
 
     private int theme = LIGHT;
     private int size = MEDIUM;
     private int type = MONO;
+    private int budget = BUDGET;
 
-    private int syntax;
+    private Syntax syntax;
+    private WordCounter wordCounter = new WordCounter();
+    private FindIndex findIndex;
+    private UndoHistory undoHistory;
+    private EditJournal editJournal;
+    private EditJournal.Recovery recovery;
+    private FileWatcher fileWatcher;
+    private CharsetEncoder encoder;
 
     // onCreate
     @Override
@@ -474,11 +341,13 @@ public class Editor extends Activity
         last = preferences.getBoolean(PREF_LAST, false);
         wrap = preferences.getBoolean(PREF_WRAP, false);
         suggest = preferences.getBoolean(PREF_SUGGEST, true);
+        follow = preferences.getBoolean(PREF_FOLLOW, false);
         highlight = preferences.getBoolean(PREF_HIGH, false);
 
         theme = preferences.getInt(PREF_THEME, LIGHT);
         size = preferences.getInt(PREF_SIZE, MEDIUM);
         type = preferences.getInt(PREF_TYPE, monospace);
+        budget = preferences.getInt(PREF_BUDGET, BUDGET);
 
         Set<String> pathSet = preferences.getStringSet(PREF_PATHS, null);
         pathMap = new HashMap<>();
@@ -537,12 +406,18 @@ public class Editor extends Activity
         textView = findViewById(R.id.text);
         scrollView = findViewById(R.id.vscroll);
 
+        // The text may be too large for the saved state, it's read
+        // again if the activity is recreated
+        textView.setSaveEnabled(false);
+
         getActionBar().setSubtitle(match);
         getActionBar().setCustomView(R.layout.custom);
         getActionBar().setDisplayShowCustomEnabled(true);
         customView = (TextView) getActionBar().getCustomView();
 
         updateWordCount = () -> wordCountText();
+        autoSave = () -> autoSave();
+        checkFile = () -> checkFile();
 
         if (savedInstanceState != null)
             edit = savedInstanceState.getBoolean(EDIT);
@@ -561,6 +436,33 @@ public class Editor extends Activity
         setSizeAndTypeface(size, type);
         executor = Executors.newSingleThreadExecutor();
 
+        // Highlighting has a thread of its own, so it doesn't wait
+        // for loads and saves
+        lexer = Executors.newSingleThreadExecutor();
+
+        // Undo history, which spills to the cache if it gets too big,
+        // to a file of its own as there may be more than one editor
+        File spill = null;
+        try
+        {
+            spill = File.createTempFile(UNDO_PREFIX, UNDO_SUFFIX,
+                                        getCacheDir());
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        undoHistory = new UndoHistory(UndoHistory.MAX_BYTES, spill);
+
+        // Journal of edits not saved, one for each document, carried
+        // on with in onRestoreInstanceState() if recreated
+        editJournal = new EditJournal(getCacheDir());
+
+        // Load syntax definitions
+        executor.execute(() -> Syntax.getSyntaxes(this));
+
         setListeners();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R &&
@@ -614,6 +516,10 @@ public class Editor extends Activity
             return;
         }
 
+        // Check for edits lost when the app last stopped
+        if (savedInstanceState == null)
+            checkRecovery();
+
         Intent intent = getIntent();
         Uri uri = intent.getData();
 
@@ -683,7 +589,7 @@ public class Editor extends Activity
                 @Override
                 public void afterTextChanged(Editable s)
                 {
-                    if (!changed)
+                    if (!changed && !loading)
                     {
                         changed = true;
                         invalidateOptionsMenu();
@@ -709,6 +615,10 @@ public class Editor extends Activity
                                               int count,
                                               int after)
                 {
+                    // Keep the text about to go for undo
+                    if (!loading)
+                        undoHistory.before(s, start, count);
+
                     if (searchItem != null &&
                         searchItem.isActionViewExpanded())
                     {
@@ -731,7 +641,49 @@ public class Editor extends Activity
                 public void onTextChanged(CharSequence s,
                                           int start,
                                           int before,
-                                          int count) {}
+                                          int count)
+                {
+                    // Count the edits, so background work can tell
+                    // if the text has changed
+                    edits++;
+
+                    // Record the edit for undo, updating the menu if
+                    // there was nothing to undo, and in the journal
+                    if (!loading)
+                    {
+                        boolean undo = undoHistory.canUndo();
+                        undoHistory.edit(s, start, before, count);
+                        if (!undo)
+                            invalidateOptionsMenu();
+
+                        editJournal.edit(s, start, before, count);
+                        scheduleAutoSave(before + count);
+                    }
+
+                    // Keep the highlighter in step
+                    if (highlighter != null)
+                        highlighter.edit(start, before, count);
+
+                    // Count the words that changed
+                    wordCounter.edit(s, start, before, count);
+
+                    // Search again when needed
+                    if (queryTextListener != null)
+                        queryTextListener.edit();
+
+                    // Keep the document in step
+                    if (document != null)
+                    {
+                        document.replace(start, start + before, s,
+                                         start, start + count);
+
+                        if (BuildConfig.DEBUG &&
+                            document.length() != s.length())
+                            Log.w(TAG, "Document length " +
+                                  document.length() + ", text length " +
+                                  s.length());
+                    }
+                }
             });
 
             // onFocusChange
@@ -811,6 +763,9 @@ public class Editor extends Activity
                     textView.removeCallbacks(updateHighlight);
                     textView.postDelayed(updateHighlight, UPDATE_DELAY);
                 }
+
+                if (queryTextListener != null)
+                    queryTextListener.scrolled();
             });
         }
     }
@@ -821,11 +776,17 @@ public class Editor extends Activity
     {
         super.onRestoreInstanceState(savedInstanceState);
 
+        deltaSave = null;
+        undoHistory.clear();
+
         path = savedInstanceState.getString(PATH);
         edit = savedInstanceState.getBoolean(EDIT);
         changed = savedInstanceState.getBoolean(CHANGED);
         match = savedInstanceState.getString(MATCH);
         modified = savedInstanceState.getLong(MODIFIED);
+        fileSize = savedInstanceState.getLong(FILE_SIZE);
+        fileHash = savedInstanceState.getLong(FILE_HASH);
+        newline = savedInstanceState.getString(NEWLINE, TextBuffer.LF);
         content = savedInstanceState.getParcelable(CONTENT);
         invalidateOptionsMenu();
 
@@ -844,16 +805,47 @@ public class Editor extends Activity
 
         checkHighlight();
 
-        if (file.lastModified() > modified)
-            alertDialog(this, R.string.appName, R.string.changedReload,
-                        R.string.reload, R.string.cancel, (dialog, id) ->
+        // The text isn't in the saved state, so read it again, and
+        // replay the journal of the edits, which carries on. Not
+        // checking the file until it's read
+        String key = (content != null)? content.toString(): path;
+        File journal = EditJournal.getFile(getCacheDir(), key);
+        boolean changed = this.changed;
+        File file = this.file;
+        Uri content = this.content;
+        loading = true;
+
+        editJournal.resume(key);
+        editJournal.post(() ->
         {
-            switch (id)
+            // Only if the file is as it was when the edits were made,
+            // content is read again whatever
+            EditJournal.Recovery read = changed?
+                EditJournal.read(journal): null;
+            EditJournal.Recovery restore = (read != null &&
+                                            (content != null ||
+                                             read.matches(file)))?
+                read: null;
+            runOnUiThread(() ->
             {
-            case DialogInterface.BUTTON_POSITIVE:
-                readFile(uri);
-            }
+                // The activity may have gone
+                if (!isDestroyed())
+                    restoreText(restore);
+            });
         });
+
+        // The file is checked for changes in onResume()
+    }
+
+    // onResume
+    @Override
+    public void onResume()
+    {
+        super.onResume();
+
+        // Watch the file, and check it hasn't changed meanwhile
+        watchFile();
+        textView.post(checkFile);
     }
 
     // onPause
@@ -862,12 +854,22 @@ public class Editor extends Activity
     {
         super.onPause();
 
+        // Stop watching
+        if (fileWatcher != null)
+            fileWatcher.stopWatching();
+        fileWatcher = null;
+
         // Save current path
         savePath(path);
 
+        // Write the journal, the app may not come back
+        editJournal.flush();
+
         // Stop highlighting
         textView.removeCallbacks(updateHighlight);
         textView.removeCallbacks(updateWordCount);
+        textView.removeCallbacks(autoSave);
+        textView.removeCallbacks(checkFile);
 
         SharedPreferences preferences =
             PreferenceManager.getDefaultSharedPreferences(this);
@@ -878,11 +880,13 @@ public class Editor extends Activity
         editor.putBoolean(PREF_LAST, last);
         editor.putBoolean(PREF_WRAP, wrap);
         editor.putBoolean(PREF_SUGGEST, suggest);
+        editor.putBoolean(PREF_FOLLOW, follow);
         editor.putBoolean(PREF_HIGH, highlight);
 
         editor.putInt(PREF_THEME, theme);
         editor.putInt(PREF_SIZE, size);
         editor.putInt(PREF_TYPE, type);
+        editor.putInt(PREF_BUDGET, budget);
 
         editor.putString(PREF_FILE, path);
 
@@ -904,6 +908,35 @@ public class Editor extends Activity
             saveFile();
     }
 
+    // onDestroy
+    @Override
+    public void onDestroy()
+    {
+        super.onDestroy();
+
+        // Stop loading and searching, and let saves queued in
+        // onPause() finish, the threads would keep the activity
+        textView.removeCallbacks(updateHighlight);
+        textView.removeCallbacks(updateWordCount);
+        textView.removeCallbacks(autoSave);
+        textView.removeCallbacks(checkFile);
+        loader = null;
+        if (queryTextListener != null)
+            queryTextListener.shutdown();
+
+        if (findPool != null)
+            findPool.shutdownNow();
+
+        executor.shutdown();
+        lexer.shutdownNow();
+
+        // Remove the undo spill file
+        undoHistory.close();
+
+        // Let go of the journal, it's kept for recovery
+        editJournal.close();
+    }
+
     // onSaveInstanceState
     @Override
     public void onSaveInstanceState(Bundle outState)
@@ -912,6 +945,9 @@ public class Editor extends Activity
 
         outState.putParcelable(CONTENT, content);
         outState.putLong(MODIFIED, modified);
+        outState.putLong(FILE_SIZE, fileSize);
+        outState.putLong(FILE_HASH, fileHash);
+        outState.putString(NEWLINE, newline);
         outState.putBoolean(CHANGED, changed);
         outState.putString(MATCH, match);
         outState.putBoolean(EDIT, edit);
@@ -944,19 +980,28 @@ public class Editor extends Activity
             searchView.setOnQueryTextListener(queryTextListener);
         }
 
-        // Show find all item
+        // Show find all and replace all items
         if (menu.findItem(R.id.search).isActionViewExpanded())
+        {
             menu.findItem(R.id.findAll).setVisible(true);
+            menu.findItem(R.id.replaceAll).setVisible(edit);
+        }
         else
+        {
             menu.findItem(R.id.findAll).setVisible(false);
+            menu.findItem(R.id.replaceAll).setVisible(false);
+        }
 
         menu.findItem(R.id.edit).setVisible(!edit);
         menu.findItem(R.id.view).setVisible(edit);
         menu.findItem(R.id.save).setVisible(changed);
+        menu.findItem(R.id.undo).setVisible(edit && undoHistory.canUndo());
+        menu.findItem(R.id.redo).setVisible(edit && undoHistory.canRedo());
 
         menu.findItem(R.id.viewFile).setChecked(view);
         menu.findItem(R.id.openLast).setChecked(last);
         menu.findItem(R.id.autoSave).setChecked(save);
+        menu.findItem(R.id.follow).setChecked(follow);
         menu.findItem(R.id.wrap).setChecked(wrap);
         menu.findItem(R.id.suggest).setChecked(suggest);
         menu.findItem(R.id.highlight).setChecked(highlight);
@@ -1003,6 +1048,25 @@ public class Editor extends Activity
             break;
         }
 
+        switch (budget)
+        {
+        case 1000:
+            menu.findItem(R.id.second1).setChecked(true);
+            break;
+
+        case 2000:
+            menu.findItem(R.id.second2).setChecked(true);
+            break;
+
+        case 5000:
+            menu.findItem(R.id.second5).setChecked(true);
+            break;
+
+        case 10000:
+            menu.findItem(R.id.second10).setChecked(true);
+            break;
+        }
+
         // Get the charsets
         Set<String> keySet = Charset.availableCharsets().keySet();
         // Get the submenu
@@ -1101,6 +1165,12 @@ public class Editor extends Activity
         case R.id.save:
             saveCheck();
             break;
+        case R.id.undo:
+            undo();
+            break;
+        case R.id.redo:
+            redo();
+            break;
         case R.id.saveAs:
             saveAs();
             break;
@@ -1110,6 +1180,9 @@ public class Editor extends Activity
         case R.id.findAll:
             findAll();
             break;
+        case R.id.replaceAll:
+            replaceAll();
+            break;
         case R.id.goTo:
             goTo();
             break;
@@ -1128,6 +1201,9 @@ public class Editor extends Activity
         case R.id.autoSave:
             autoSaveClicked(item);
             break;
+        case R.id.follow:
+            followClicked(item);
+            break;
         case R.id.wrap:
             wrapClicked(item);
             break;
@@ -1164,6 +1240,18 @@ public class Editor extends Activity
         case R.id.large:
             largeClicked(item);
             break;
+        case R.id.second1:
+            searchTimeClicked(item, 1000);
+            break;
+        case R.id.second2:
+            searchTimeClicked(item, 2000);
+            break;
+        case R.id.second5:
+            searchTimeClicked(item, 5000);
+            break;
+        case R.id.second10:
+            searchTimeClicked(item, 10000);
+            break;
         case R.id.about:
             aboutClicked();
             break;
@@ -1180,7 +1268,8 @@ public class Editor extends Activity
 
         // Close text search
         if (searchItem != null && searchItem.isActionViewExpanded() &&
-                item.getItemId() != R.id.findAll)
+                item.getItemId() != R.id.findAll &&
+                item.getItemId() != R.id.replaceAll)
             searchItem.collapseActionView();
 
         return true;
@@ -1209,6 +1298,7 @@ public class Editor extends Activity
                 break;
             case DialogInterface.BUTTON_NEGATIVE:
                 changed = false;
+                editJournal.end();
                 finish();
                 break;
             }
@@ -1281,6 +1371,17 @@ public class Editor extends Activity
             case KeyEvent.KEYCODE_G:
                 goTo();
                 break;
+                // Redo
+            case KeyEvent.KEYCODE_Y:
+                redo();
+                break;
+                // Undo, Redo
+            case KeyEvent.KEYCODE_Z:
+                if (event.isShiftPressed())
+                    redo();
+                else
+                    undo();
+                break;
                 // Menu
             case KeyEvent.KEYCODE_M:
                 openOptionsMenu();
@@ -1332,8 +1433,15 @@ public class Editor extends Activity
                 // Find next
             case KeyEvent.KEYCODE_F3:
                 if (searchItem.isActionViewExpanded())
-                    queryTextListener.onQueryTextSubmit
-                        (searchView.getQuery().toString());
+                {
+                    // Find previous
+                    if (event.isShiftPressed())
+                        queryTextListener.findPrevious
+                            (searchView.getQuery().toString());
+                    else
+                        queryTextListener.onQueryTextSubmit
+                            (searchView.getQuery().toString());
+                }
                 break;
                 // Menu
             case KeyEvent.KEYCODE_F10:
@@ -1428,22 +1536,194 @@ public class Editor extends Activity
     // newFile
     private void newFile(String text)
     {
+        // Stop loading
+        loader = null;
+        loading = false;
+
         textView.setText("");
+        document = new PieceTable("");
+        deltaSave = null;
+        undoHistory.clear();
+        newline = TextBuffer.LF;
         changed = false;
 
         file = getNewFile();
         uri = Uri.fromFile(file);
         path = uri.getPath();
         content = null;
+        match = UTF_8;
+
+        // A new file starts empty
+        beginJournal(path, 0, 0);
+        watchFile();
 
         if (text != null)
             textView.append(text);
 
         setTitle(uri.getLastPathSegment());
-        match = UTF_8;
         getActionBar().setSubtitle(match);
     }
 
+    // checkRecovery
+    private void checkRecovery()
+    {
+        // Each document has its own journal, only recover it if the
+        // file is as it was when the edits were made. Read them in
+        // the background, on the journal thread, so a document
+        // opened meanwhile doesn't begin its journal again first
+        List<File> journals = EditJournal.journals(getCacheDir());
+        editJournal.post(() ->
+        {
+            // Put back files left part written first, so the
+            // journals fit them again
+            DeltaSave.rollback(getCacheDir());
+            for (File journal: journals)
+            {
+                EditJournal.Recovery recovery = EditJournal.read(journal);
+                if (recovery == null || recovery.edits() == 0 ||
+                    !recovery.matches(new File(recovery.path)))
+                {
+                    EditJournal.discard(journal);
+                    continue;
+                }
+
+                runOnUiThread(() ->
+                {
+                    // The activity may have gone
+                    if (!isFinishing() && !isDestroyed())
+                        recoveryDialog(recovery);
+                });
+                break;
+            }
+        });
+    }
+
+    // recoveryDialog
+    private void recoveryDialog(EditJournal.Recovery recovery)
+    {
+        File file = new File(recovery.path);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.recover);
+        builder.setMessage(getString(R.string.recoverEdits, file.getName()));
+
+        // Add the buttons
+        builder.setPositiveButton(R.string.recover, (dialog, id) ->
+        {
+            this.recovery = recovery;
+            this.file = file;
+            uri = Uri.fromFile(file);
+            path = uri.getPath();
+            content = null;
+
+            if (file.exists())
+                readFile(uri);
+
+            // The file was new
+            else
+            {
+                loader = null;
+                loading = false;
+
+                textView.setText("");
+                document = new PieceTable("");
+                undoHistory.clear();
+                changed = false;
+
+                setTitle(uri.getLastPathSegment());
+                newline = TextBuffer.LF;
+                match = UTF_8;
+                getActionBar().setSubtitle(match);
+                beginJournal(path, 0, 0);
+                recover();
+            }
+        });
+
+        // Then offer the next one
+        builder.setNegativeButton(R.string.discard, (dialog, id) ->
+        {
+            EditJournal.discard(recovery.file);
+            checkRecovery();
+        });
+
+        // Create the AlertDialog
+        builder.show();
+    }
+
+    // recover
+    private void recover()
+    {
+        // Replay the edits on a copy of the document in the background,
+        // and put the result in the text as one edit
+        EditJournal.Recovery recovery = this.recovery;
+        if (!recovery.fits(getEncoder().charset().name(), newline))
+        {
+            this.recovery = null;
+            recoverFailed();
+            return;
+        }
+
+        PieceTable table = (document != null)? document.snapshot():
+            new PieceTable(textView.getText().toString());
+        String path = this.path;
+        int edits = this.edits;
+        this.recovery = null;
+
+        executor.execute(() ->
+        {
+            if (!recovery.replay(table))
+                return;
+
+            String text = table.toString();
+            runOnUiThread(() ->
+            {
+                // Not if the text has changed meanwhile
+                if (isDestroyed() || !path.equals(this.path) ||
+                    edits != this.edits)
+                    return;
+
+                textView.getEditableText()
+                    .replace(0, textView.length(), text);
+
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, "Recovered " + recovery.edits() + " edits");
+            });
+        });
+    }
+
+    // restoreText
+    private void restoreText(EditJournal.Recovery restore)
+    {
+        // A new file with no edits is empty
+        Uri uri = (content != null)? resolveContent(content): this.uri;
+        boolean local = FILE.equalsIgnoreCase(uri.getScheme());
+        if (local && restore == null && !new File(uri.getPath()).exists())
+        {
+            document = new PieceTable("");
+            loading = false;
+            return;
+        }
+
+        long size = local? new File(uri.getPath()).length():
+            FileUtils.getSize(this, uri, null, null);
+        doRead(this, uri, size, restore);
+    }
+
+    // beginJournal
+    private void beginJournal(String path, long modified, long length)
+    {
+        // The edits fit the file decoded with the charset and newline
+        editJournal.begin(path, modified, length,
+                          getEncoder().charset().name(), newline);
+    }
+
+    // recoverFailed
+    private void recoverFailed()
+    {
+        // The file was read differently to when the edits were made
+        String message = getString(R.string.recoverFailed, getTitle());
+        alertDialog(this, R.string.appName, message, R.string.ok);
+    }
+
     // getNewFile
     private static File getNewFile()
     {
@@ -1476,6 +1756,7 @@ public class Editor extends Activity
             setTitle(uri.getLastPathSegment());
             match = UTF_8;
             getActionBar().setSubtitle(match);
+            beginJournal(path, 0, 0);
         }
     }
 
@@ -1504,6 +1785,7 @@ public class Editor extends Activity
             setTitle(uri.getLastPathSegment());
             match = UTF_8;
             getActionBar().setSubtitle(match);
+            beginJournal(path, 0, 0);
         }
     }
 
@@ -1767,6 +2049,75 @@ public class Editor extends Activity
         doFind(this, search);
     }
 
+    // undo
+    public void undo()
+    {
+        // Only while editing
+        if (!edit)
+            return;
+
+        int offset = undoHistory.undo(textView.getEditableText());
+        if (offset >= 0)
+            textView.setSelection(offset);
+
+        invalidateOptionsMenu();
+    }
+
+    // redo
+    public void redo()
+    {
+        // Only while editing
+        if (!edit)
+            return;
+
+        int offset = undoHistory.redo(textView.getEditableText());
+        if (offset >= 0)
+            textView.setSelection(offset);
+
+        invalidateOptionsMenu();
+    }
+
+    // replaceAll
+    public void replaceAll()
+    {
+        // Get search string
+        String search = searchView.getQuery().toString();
+
+        // Open dialog
+        replaceDialog(this, (dialog, id) ->
+        {
+            switch (id)
+            {
+            case DialogInterface.BUTTON_POSITIVE:
+                EditText text =
+                    ((Dialog) dialog).findViewById(R.id.replaceText);
+                doReplace(search, text.getText().toString());
+                break;
+            }
+        });
+    }
+
+    // replaceDialog
+    private static void replaceDialog(Context context,
+                                      DialogInterface.OnClickListener listener)
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle(R.string.replaceAll);
+
+        // Add the buttons
+        builder.setPositiveButton(R.string.replace, listener);
+        builder.setNegativeButton(R.string.cancel, listener);
+
+        // Create edit text
+        LayoutInflater inflater = (LayoutInflater) builder.getContext()
+            .getSystemService(LAYOUT_INFLATER_SERVICE);
+        View view = inflater.inflate(R.layout.replace, null);
+        builder.setView(view);
+
+        // Create the AlertDialog
+        builder.show();
+    }
+
     // goTo
     public void goTo()
     {
@@ -1936,6 +2287,16 @@ public class Editor extends Activity
         item.setChecked(save);
     }
 
+    // followClicked
+    private void followClicked(MenuItem item)
+    {
+        follow = !follow;
+        item.setChecked(follow);
+
+        if (follow)
+            scrollToEnd();
+    }
+
     // wrapClicked
     private void wrapClicked(MenuItem item)
     {
@@ -2044,6 +2405,14 @@ public class Editor extends Activity
         textView.setTextSize(size);
     }
 
+    // searchTimeClicked
+    private void searchTimeClicked(MenuItem item, int millis)
+    {
+        // Searches that take longer than this are given up
+        budget = millis;
+        item.setChecked(true);
+    }
+
     // setSizeAndTypeface
     private void setSizeAndTypeface(int size, int type)
     {
@@ -2309,11 +2678,12 @@ public class Editor extends Activity
         if (BuildConfig.DEBUG)
             Log.d(TAG, "Size " + size);
 
-        if (size > TOO_LARGE)
+        if (size > getMaxSize(uri))
         {
             String large = getString(R.string.tooLarge);
             large = String.format(large, FileUtils.getReadableFileSize(size));
             alertDialog(this, R.string.appName, large, R.string.ok);
+            select = -1;
             return;
         }
 
@@ -2357,9 +2727,11 @@ public class Editor extends Activity
             setTitle(uri.getLastPathSegment());
         }
 
+        // The journal is for the text being replaced
+        editJournal.end();
         textView.setText(R.string.loading);
 
-        doRead(this, uri);
+        doRead(this, uri, size, null);
 
         changed = false;
         modified = file.lastModified();
@@ -2367,6 +2739,21 @@ public class Editor extends Activity
         invalidateOptionsMenu();
     }
 
+    // getMaxSize
+    private long getMaxSize(Uri uri)
+    {
+        // Unresolved content is read from a stream
+        if (CONTENT.equalsIgnoreCase(uri.getScheme()) &&
+            CONTENT.equalsIgnoreCase(resolveContent(uri).getScheme()))
+            return TOO_LARGE;
+
+        // Files are mapped and decoded straight into the text, allow
+        // for the text, two bytes a character, which the document
+        // keeps as its original, the copy the text view makes, up to
+        // twice that as it grows, and room for edits and undo
+        return Runtime.getRuntime().maxMemory() / MEMORY_FACTOR;
+    }
+
     // resolveContent
     private Uri resolveContent(Uri uri)
     {
@@ -2401,649 +2788,689 @@ public class Editor extends Activity
         textView.removeCallbacks(updateHighlight);
         textView.removeCallbacks(updateWordCount);
 
-        if (file.lastModified() > modified)
-            alertDialog(this, R.string.appName, R.string.changedOverwrite,
-                        R.string.overwrite, R.string.cancel, (dialog, id) ->
-        {
-            switch (id)
-            {
-            case DialogInterface.BUTTON_POSITIVE:
-                saveFile(file);
-                break;
-            }
-        });
+        // Whether the file has changed is checked in the background
+        if (content == null)
+            saveFile(file, false, true);
 
         else
-        {
-            if (content == null)
-                saveFile(file);
-
-            else
-                saveFile(content);
-        }
+            saveFile(content);
     }
 
-    // saveFile
-    private void saveFile(File file)
+    // scheduleAutoSave
+    private void scheduleAutoSave(int changes)
     {
-        CharSequence text = textView.getText();
-        write(text, file);
-    }
+        if (!save)
+            return;
 
-    // saveFile
-    private void saveFile(Uri uri)
-    {
-        CharSequence text = textView.getText();
-        try (OutputStream outputStream =
-             getContentResolver().openOutputStream(uri, "rwt"))
-        {
-            write(text, outputStream);
-        }
+        // Save after a pause in typing, or straight away after a lot
+        // of changes, posting again puts it off
+        unsaved += changes;
+        textView.removeCallbacks(autoSave);
+        if (unsaved >= AUTO_SAVE_CHANGES)
+            textView.post(autoSave);
 
-        catch (Exception e)
-        {
-            alertDialog(this, R.string.appName, e.getMessage(), R.string.ok);
-            e.printStackTrace();
-            return;
-        }
+        else
+            textView.postDelayed(autoSave, AUTO_SAVE_DELAY);
     }
 
-    // write
-    private void write(CharSequence text, File file)
+    // autoSave
+    private void autoSave()
     {
-        file.getParentFile().mkdirs();
+        unsaved = 0;
 
-        String charset = UTF_8;
-        if (match != null && !match.equals(getString(R.string.detect)))
-            charset = match;
+        // Not content, or while loading, whether the file has
+        // changed is checked in the background
+        if (!changed || !save || loading || content != null)
+            return;
+
+        long start = System.nanoTime();
+        saveFile(file, true, true);
 
-        try (BufferedWriter writer = new BufferedWriter
-             (new OutputStreamWriter(new FileOutputStream(file), charset)))
+        // Measure the time taken on the UI thread, and to the next
+        // frame
+        if (BuildConfig.DEBUG)
         {
-            writer.append(text);
-            writer.flush();
+            long time = System.nanoTime() - start;
+            Choreographer.getInstance().postFrameCallback((frame) ->
+                Log.d(TAG, "Auto save " + time / 1000 + "us, next frame " +
+                      (frame - start) / 1000000 + "ms"));
         }
+    }
 
-        catch (Exception e)
-        {
-            alertDialog(this, R.string.appName, e.getMessage(), R.string.ok);
-            e.printStackTrace();
-            return;
-        }
-
-        changed = false;
-        invalidateOptionsMenu();
-        modified = file.lastModified();
-        savePath(file.getPath());
-    }
-
-    // write
-    private void write(CharSequence text, OutputStream os)
-    {
-        String charset = UTF_8;
-        if (match != null && !match.equals(getString(R.string.detect)))
-            charset = match;
-
-        try (BufferedWriter writer =
-             new BufferedWriter(new OutputStreamWriter(os, charset)))
-        {
-            writer.append(text);
-            writer.flush();
-        }
-
-        catch (Exception e)
-        {
-            alertDialog(this, R.string.appName, e.getMessage(), R.string.ok);
-            e.printStackTrace();
-            return;
-        }
-
-        changed = false;
-        invalidateOptionsMenu();
-    }
-
-    // checkHighlight
-    private void checkHighlight()
+    // saveFile
+    private void saveFile(File file, boolean auto, boolean check)
     {
-        // No syntax
-        syntax = NO_SYNTAX;
+        // Write a snapshot in the background, so edits made meanwhile
+        // leave the document changed
+        CharSequence text = getSnapshot();
+        CharsetEncoder encoder = getEncoder();
+        String newline = this.newline;
+        String path = this.path;
+        int edits = this.edits;
+        editJournal.mark();
+
+        // The document as it is in the file, if it hasn't been changed
+        // since it was read or saved, and no other save is waiting
+        DeltaSave deltaSave = (saving++ == 0 && text instanceof PieceTable &&
+                               file.lastModified() == modified)?
+            this.deltaSave: null;
+        long modified = this.modified;
+        long fileSize = this.fileSize;
+        long fileHash = this.fileHash;
 
-        // Check extension
-        if (highlight && file != null)
+        executor.execute(() ->
         {
-            String ext = FileUtils.getExtension(file.getName());
-            if (ext != null)
+            // An auto save leaves a file that has changed, a save asks
+            // first, on the UI thread
+            if (check && fileChanged(file, modified, fileSize, fileHash))
             {
-                String type = FileUtils.getMimeType(file);
-
-                if (ext.matches(CC_EXT))
-                    syntax = CC_SYNTAX;
+                runOnUiThread(() ->
+                {
+                    saving--;
+                    editJournal.unmark();
 
-                else if (ext.matches(HTML_EXT))
-                    syntax = HTML_SYNTAX;
+                    // Not if another file has been opened, or the
+                    // activity has gone
+                    if (auto || !path.equals(this.path) ||
+                        isFinishing() || isDestroyed())
+                        return;
 
-                else if (ext.matches(CSS_EXT))
-                    syntax = CSS_SYNTAX;
+                    alertDialog(this, R.string.appName,
+                                R.string.changedOverwrite, R.string.overwrite,
+                                R.string.cancel, (dialog, id) ->
+                    {
+                        switch (id)
+                        {
+                        case DialogInterface.BUTTON_POSITIVE:
+                            // The file isn't as saved, so write it whole
+                            this.deltaSave = null;
+                            saveFile(file, false, false);
+                            break;
+                        }
+                    });
+                });
+                return;
+            }
 
-                else if (ext.matches(ORG_EXT))
-                    syntax = ORG_SYNTAX;
+            // An auto save doesn't need to write text that's the same
+            // as in the file
+            long start = System.currentTimeMillis();
+            long hash = XXHash64.hash(text);
+            String key = hashKey(file.getPath(), newline, encoder);
+            boolean same = auto && hash == this.hash && key.equals(hashKey);
 
-                else if (ext.matches(MD_EXT))
-                    syntax = MD_SYNTAX;
+            try
+            {
+                long written = same? 0: -1;
+                if (!same && deltaSave != null)
+                    written = deltaSave.write(file, (PieceTable) text,
+                                              newline, encoder,
+                                              getCacheDir());
 
-                else if (ext.matches(SH_EXT))
-                    syntax = SH_SYNTAX;
+                if (written < 0)
+                {
+                    write(text, file, newline, encoder);
+                    written = file.length();
+                }
 
-                else if (!TEXT_PLAIN.equals(type))
-                    syntax = DEF_SYNTAX;
+                this.hash = hash;
+                hashKey = key;
 
-                else
-                    syntax = NO_SYNTAX;
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, "Save " + written + " of " + file.length() +
+                          " bytes, " + (System.currentTimeMillis() - start) +
+                          "ms");
+            }
 
-                // Add callback
-                if (textView != null && syntax != NO_SYNTAX)
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                runOnUiThread(() ->
                 {
-                    if (updateHighlight == null)
-                        updateHighlight = () -> highlightText();
+                    saving--;
+                    saveFailed(e);
+                });
+                return;
+            }
 
-                    textView.removeCallbacks(updateHighlight);
-                    textView.postDelayed(updateHighlight, UPDATE_DELAY);
+            // Keep the size and hash of the file as written
+            long newSize = file.length();
+            long newHash = same? fileHash: getFileHash(file);
 
-                    return;
-                }
-            }
-        }
+            runOnUiThread(() ->
+            {
+                saving--;
 
-        // Remove highlighting
-        if (updateHighlight != null)
-        {
-            textView.removeCallbacks(updateHighlight);
-            textView.postDelayed(updateHighlight, UPDATE_DELAY);
+                // Another file may have been opened
+                if (!path.equals(this.path))
+                    return;
 
-            updateHighlight = null;
-        }
+                changed = (edits != this.edits);
+                invalidateOptionsMenu();
+                watchFile();
+                this.modified = file.lastModified();
+                this.fileSize = newSize;
+                this.fileHash = newHash;
+                savePath(file.getPath());
+
+                // The file is as it was if nothing was written
+                if (saving == 0 && text instanceof PieceTable && !same)
+                    this.deltaSave =
+                        new DeltaSave((PieceTable) text, newline,
+                                      encoder.charset().name(), true);
+
+                // The journal starts again from the saved file, with
+                // any edits made meanwhile
+                editJournal.rebase(file.getPath(), this.modified,
+                                   file.length(), encoder.charset().name(),
+                                   newline);
+            });
+        });
     }
 
-    // highlightText
-    private void highlightText()
+    // watchFile
+    private void watchFile()
     {
-        // Get visible extent
-        int top = scrollView.getScrollY();
-        int height = scrollView.getHeight();
-
-        int line = textView.getLayout().getLineForVertical(top);
-        int start = textView.getLayout().getLineStart(line);
-        int first = textView.getLayout().getLineStart(line + 1);
+        if (fileWatcher != null)
+            fileWatcher.stopWatching();
+        fileWatcher = null;
 
-        line = textView.getLayout().getLineForVertical(top + height);
-        int end = textView.getLayout().getLineEnd(line);
-        int last = (line == 0)? end:
-            textView.getLayout().getLineStart(line - 1);
-
-        // Move selection if outside range
-        if (textView.getSelectionStart() < start)
-            textView.setSelection(first);
-
-        if (textView.getSelectionStart() > end)
-            textView.setSelection(last);
+        // Content can't be watched
+        if (content != null || file == null)
+            return;
 
-        // Get editable
-        Editable editable = textView.getEditableText();
+        // Check the file after changes stop for a moment
+        fileWatcher = new FileWatcher(file, () -> runOnUiThread(() ->
+        {
+            textView.removeCallbacks(checkFile);
+            textView.postDelayed(checkFile, WATCH_DELAY);
+        }));
+        fileWatcher.startWatching();
+    }
 
-        // Get current spans
-        ForegroundColorSpan spans[] =
-            editable.getSpans(start, end, ForegroundColorSpan.class);
-        // Remove spans
-        for (ForegroundColorSpan span: spans)
-            editable.removeSpan(span);
+    // checkFile
+    private void checkFile()
+    {
+        // Not while loading or saving, which change the file, or if
+        // the activity is going
+        if (isFinishing() || isDestroyed() ||
+            loading || saving > 0 || content != null || file == null)
+            return;
 
-        Matcher matcher;
+        File file = this.file;
+        String path = this.path;
+        long modified = this.modified;
+        long size = fileSize;
+        long hash = fileHash;
+        Charset charset = getEncoder().charset();
 
-        switch (syntax)
+        executor.execute(() ->
         {
-        case NO_SYNTAX:
-            // Get current spans
-            spans = editable.getSpans(0, editable.length(),
-                                      ForegroundColorSpan.class);
-            // Remove spans
-            for (ForegroundColorSpan span: spans)
-                editable.removeSpan(span);
-            break;
+            if (!fileChanged(file, modified, size, hash))
+                return;
 
-        case CC_SYNTAX:
-            matcher = KEYWORDS.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
+            // Lines added to the end, if a newline is one byte in
+            // this charset
+            FileWatcher.Tail tail = null;
+            TextBuffer text = null;
+            try
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                if (Arrays.equals(TextBuffer.LF.getBytes(charset),
+                                  new byte[] {'\n'}))
+                    tail = FileWatcher.readTail(file, size, hash);
+
+                if (tail != null)
+                    text = TextBuffer.decode
+                        (Channels.newChannel
+                         (new ByteArrayInputStream(tail.bytes, 0,
+                                                   tail.count)),
+                         newDecoder(charset), tail.count, null);
             }
 
-            matcher.region(start, end).usePattern(TYPES);
-            while (matcher.find())
+            catch (Exception e)
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                e.printStackTrace();
+                tail = null;
             }
 
-            matcher.region(start, end).usePattern(CLASS);
-            while (matcher.find())
+            FileWatcher.Tail lines = tail;
+            TextBuffer added = text;
+            runOnUiThread(() ->
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.BLUE);
+                // Another file may have been opened, or saved
+                if (isDestroyed() || !path.equals(this.path) ||
+                    loading || saving > 0 ||
+                    size != fileSize || hash != fileHash)
+                    return;
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+                // Lines added can only go at the end of the file as read
+                if (lines != null && !changed)
+                    appendLines(lines, added);
 
-            matcher.region(start, end).usePattern(NUMBER);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.YELLOW);
+                else
+                    changedReload();
+            });
+        });
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+    // appendLines
+    private void appendLines(FileWatcher.Tail tail, TextBuffer text)
+    {
+        // Wait for a line that isn't finished
+        if (tail.count == 0)
+            return;
 
-            matcher.region(start, end).usePattern(ANNOTATION);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        // Add the lines as if loaded, so they aren't edits
+        loading = true;
+        textView.append(text);
+        loading = false;
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        fileSize = tail.size;
+        fileHash = tail.hash;
+        modified = file.lastModified();
 
-            matcher.region(start, end).usePattern(CONSTANT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.LTGRAY);
+        // Start again from the file as it is now, the text hash
+        // for auto saves is out of date
+        beginJournal(path, modified, fileSize);
+        deltaSave = new DeltaSave(document.snapshot(), newline,
+                                  getEncoder().charset().name(), false);
+        executor.execute(() -> hashKey = null);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, "Appended " + tail.count + " bytes");
 
-            matcher.region(start, end).usePattern(OPERATOR);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        if (follow)
+            scrollToEnd();
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+    // changedReload
+    private void changedReload()
+    {
+        // Only ask once for each change
+        long last = file.lastModified();
+        if (last == asked)
+            return;
 
-            matcher.region(start, end).usePattern(CC_COMMENT);
-            while (matcher.find())
+        asked = last;
+        alertDialog(this, R.string.appName, R.string.changedReload,
+                    R.string.reload, R.string.cancel, (dialog, id) ->
+        {
+            switch (id)
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            case DialogInterface.BUTTON_POSITIVE:
+                readFile(uri);
             }
-            break;
+        });
+    }
 
-        case HTML_SYNTAX:
-            matcher = HTML_TAGS.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+    // scrollToEnd
+    private void scrollToEnd()
+    {
+        // After the text has been laid out
+        textView.post(() ->
+            scrollView.smoothScrollTo(0, textView.getHeight()));
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+    // fileChanged
+    private static boolean fileChanged(File file, long modified,
+                                       long size, long hash)
+    {
+        // A file that has gone is just written again
+        if (!file.exists())
+            return false;
+
+        // Compare the size first, then the hash. A timestamp that
+        // hasn't changed will do, unless it's in whole seconds, when
+        // a write in the same second wouldn't show
+        if (file.length() != size)
+            return true;
 
-            matcher.region(start, end).usePattern(HTML_ATTRS);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
+        long last = file.lastModified();
+        if (last == modified && last % 1000 != 0)
+            return false;
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        return getFileHash(file) != hash;
+    }
 
-            matcher.region(start, end).usePattern(QUOTED);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+    // getFileHash
+    private static long getFileHash(File file)
+    {
+        try
+        {
+            return XXHash64.hash(file);
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return 0;
+        }
+    }
 
-            matcher.region(start, end).usePattern(HTML_COMMENT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+    // hashKey
+    private static String hashKey(String path, String newline,
+                                  CharsetEncoder encoder)
+    {
+        return path + newline + encoder.charset().name();
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
+    // saveFile
+    private void saveFile(Uri uri)
+    {
+        CharSequence text = getSnapshot();
+        CharsetEncoder encoder = getEncoder();
+        String newline = this.newline;
+        String path = this.path;
+        int edits = this.edits;
+        editJournal.mark();
 
-        case CSS_SYNTAX:
-            matcher = CSS_STYLES.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
+        executor.execute(() ->
+        {
+            // Content can't be renamed, so write a temporary file
+            // first, then the content is only cut short if the copy
+            // fails
+            File temp = null;
+            try
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                temp = File.createTempFile(SAVE_PREFIX, TEMP_SUFFIX,
+                                           getCacheDir());
+                write(text, temp, newline, encoder);
+
+                try (FileInputStream input = new FileInputStream(temp);
+                     ParcelFileDescriptor descriptor = getContentResolver()
+                     .openFileDescriptor(uri, "rwt");
+                     FileOutputStream output = new
+                     FileOutputStream(descriptor.getFileDescriptor()))
+                {
+                    FileChannel channel = input.getChannel();
+                    long size = channel.size();
+                    for (long position = 0; position < size;)
+                        position += channel.transferTo
+                            (position, size - position, output.getChannel());
+                    sync(output);
+                }
             }
 
-            matcher.region(start, end).usePattern(CSS_HEX);
-            while (matcher.find())
+            catch (Exception e)
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                e.printStackTrace();
+                runOnUiThread(() -> saveFailed(e));
+                return;
             }
 
-            matcher.region(start, end).usePattern(CC_COMMENT);
-            while (matcher.find())
+            finally
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                if (temp != null)
+                    temp.delete();
             }
-            break;
 
-        case ORG_SYNTAX:
-            matcher = ORG_HEADER.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
+            runOnUiThread(() ->
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.BLUE);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+                // Another file may have been opened
+                if (!path.equals(this.path))
+                    return;
 
+                changed = (edits != this.edits);
+                invalidateOptionsMenu();
 
-            matcher.region(start, end).usePattern(ORG_EMPH);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
+                // The journal starts again from the saved content, with
+                // any edits made meanwhile
+                editJournal.rebase(uri.toString(), 0, -1,
+                                   encoder.charset().name(), newline);
+            });
+        });
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+    // saveFailed
+    private void saveFailed(Exception e)
+    {
+        // The file may have been partly written
+        deltaSave = null;
+        editJournal.unmark();
 
-            matcher.region(start, end).usePattern(ORG_LINK);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        // The activity may have gone
+        if (!isFinishing() && !isDestroyed())
+            alertDialog(this, R.string.appName, e.getMessage(), R.string.ok);
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+    // getSnapshot
+    private CharSequence getSnapshot()
+    {
+        // The document can be copied straight away, and the copy
+        // doesn't change
+        if (document != null)
+            return document.snapshot();
 
-            matcher.region(start, end).usePattern(ORG_COMMENT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+        return textView.getText().toString();
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
+    // write
+    private void write(CharSequence text, File file, String newline,
+                       CharsetEncoder encoder) throws IOException
+    {
+        file.getParentFile().mkdirs();
 
-        case MD_SYNTAX:
-            matcher = MD_HEADER.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
+        // Write a temporary file next to the file, and rename it, so
+        // the file is never left half written
+        File temp = new File(file.getParentFile(),
+                             "." + file.getName() + TEMP_SUFFIX);
+        try
+        {
+            // Encode a chunk at a time, and make sure it's on the disk
+            try (FileOutputStream output = new FileOutputStream(temp))
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.BLUE);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                TextBuffer.write(output.getChannel(), text, newline,
+                                 encoder);
+                sync(output);
             }
 
-            matcher.region(start, end).usePattern(MD_LINK);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+            if (!temp.renameTo(file))
+                throw new IOException(getString(R.string.renameFailed,
+                                                file.getPath()));
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        finally
+        {
+            temp.delete();
+        }
+    }
 
-            matcher.region(start, end).usePattern(MD_EMPH);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
+    // sync
+    private static void sync(FileOutputStream output)
+    {
+        try
+        {
+            output.getFD().sync();
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        // Some content providers can't
+        catch (IOException e) {}
+    }
 
-            matcher.region(start, end).usePattern(MD_CODE);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+    // getEncoder
+    private CharsetEncoder getEncoder()
+    {
+        String charset = UTF_8;
+        if (match != null && !match.equals(getString(R.string.detect)))
+            charset = match;
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
+        // Keep the encoder for the next save
+        if (encoder == null || !encoder.charset().name().equals(charset))
+            encoder = Charset.forName(charset).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
 
-        case SH_SYNTAX:
-            matcher = KEYWORDS.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        return encoder;
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+    // checkHighlight
+    private void checkHighlight()
+    {
+        // No syntax
+        syntax = null;
 
-            matcher.region(start, end).usePattern(NUMBER);
-            while (matcher.find())
+        // Check extension
+        if (highlight && file != null)
+        {
+            String ext = FileUtils.getExtension(file.getName());
+            if (ext != null)
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.YELLOW);
+                String type = FileUtils.getMimeType(file);
+                syntax = Syntax.forExtension(this, ext);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+                // Default highlighting if not plain text
+                if (syntax == null && !TEXT_PLAIN.equals(type))
+                    syntax = Syntax.getDefault(this);
 
-            matcher.region(start, end).usePattern(CONSTANT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.LTGRAY);
+                // Add callback
+                if (textView != null && syntax != null)
+                {
+                    if (highlighter == null ||
+                        highlighter.getSyntax() != syntax)
+                        highlighter = new Highlighter(syntax);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+                    if (updateHighlight == null)
+                        updateHighlight = () -> highlightText();
 
-            matcher.region(start, end).usePattern(SH_VAR);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
+                    textView.removeCallbacks(updateHighlight);
+                    textView.postDelayed(updateHighlight, UPDATE_DELAY);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    return;
+                }
             }
+        }
 
-            matcher.region(start, end).usePattern(OPERATOR);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        // Remove highlighting
+        if (updateHighlight != null)
+        {
+            textView.removeCallbacks(updateHighlight);
+            textView.postDelayed(updateHighlight, UPDATE_DELAY);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+            updateHighlight = null;
+        }
+    }
 
-            matcher.region(start, end).usePattern(QUOTED);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+    // highlightText
+    private void highlightText()
+    {
+        // Get visible extent
+        int top = scrollView.getScrollY();
+        int height = scrollView.getHeight();
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        int line = textView.getLayout().getLineForVertical(top);
+        int start = textView.getLayout().getLineStart(line);
+        int first = textView.getLayout().getLineStart(line + 1);
 
-            matcher.region(start, end).usePattern(SH_COMMENT);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+        line = textView.getLayout().getLineForVertical(top + height);
+        int end = textView.getLayout().getLineEnd(line);
+        int last = (line == 0)? end:
+            textView.getLayout().getLineStart(line - 1);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
+        // Move selection if outside range
+        if (textView.getSelectionStart() < start)
+            textView.setSelection(first);
 
-        case DEF_SYNTAX:
-            matcher = KEYWORDS.matcher(editable);
-            matcher.region(start, end);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.CYAN);
+        if (textView.getSelectionStart() > end)
+            textView.setSelection(last);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        // Get editable
+        Editable editable = textView.getEditableText();
 
-            matcher.region(start, end).usePattern(TYPES);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.MAGENTA);
+        if (syntax == null || highlighter == null)
+        {
+            // Get current spans
+            ForegroundColorSpan spans[] =
+                editable.getSpans(0, editable.length(),
+                                  ForegroundColorSpan.class);
+            // Remove spans
+            for (ForegroundColorSpan span: spans)
+                editable.removeSpan(span);
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+            highlighter = null;
+            return;
+        }
 
-            matcher.region(start, end).usePattern(CLASS);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.BLUE);
+        // Wait for the last highlight to finish
+        if (highlighting)
+        {
+            rehighlight = true;
+            return;
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        Highlighter highlighter = this.highlighter;
+        int version = highlighter.getVersion();
 
-            matcher.region(start, end).usePattern(NUMBER);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.YELLOW);
+        // Lex the lines that have changed or come into view, here if
+        // there is no document to take a snapshot of yet
+        if (document == null)
+        {
+            highlightTokens(highlighter,
+                            highlighter.highlight(editable, version,
+                                                  start, end));
+            return;
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        // Or in the background from a snapshot, unless the activity
+        // is going
+        if (isFinishing() || isDestroyed())
+            return;
 
-            matcher.region(start, end).usePattern(CONSTANT);
-            while (matcher.find())
+        PieceTable snapshot = document.snapshot();
+        highlighting = true;
+        lexer.execute(() ->
+        {
+            Highlighter.Tokens tokens =
+                highlighter.highlight(snapshot, version, start, end);
+            runOnUiThread(() ->
             {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.LTGRAY);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+                highlighting = false;
+                highlightTokens(highlighter, tokens);
 
-            matcher.region(start, end).usePattern(QUOTED);
-            while (matcher.find())
-            {
-                ForegroundColorSpan span = new
-                    ForegroundColorSpan(Color.RED);
+                if (rehighlight)
+                {
+                    rehighlight = false;
+                    highlightText();
+                }
+            });
+        });
+    }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            break;
+    // highlightTokens
+    private void highlightTokens(Highlighter highlighter,
+                                 Highlighter.Tokens tokens)
+    {
+        // Discard if the text has changed since
+        if (highlighter != this.highlighter ||
+            highlighter.getVersion() != tokens.version)
+        {
+            if (BuildConfig.DEBUG)
+                Log.d(TAG, "Highlight discarded, version " +
+                      tokens.version);
+            return;
         }
+
+        // Update the spans on the lines lexed
+        highlighter.apply(textView.getEditableText(), tokens);
+
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, "Highlight " + tokens.ranges + " ranges, " +
+                  tokens.count + " tokens, " + tokens.kept + " kept, " +
+                  tokens.added + " added, " + tokens.allocated +
+                  " allocated, " + tokens.removed + " removed");
     }
 
     // wordCountText
     private void wordCountText()
     {
-        int words = 0;
-        Matcher matcher = WORD_PATTERN.matcher(textView.getText());
-        while (matcher.find())
-        {
-            words++;
-        }
+        // The counter is kept up to date as the text changes
+        if (wordCounter.length() != textView.length())
+            wordCounter.set(textView.getText());
 
         if (customView != null)
         {
             String string = String.format(Locale.getDefault(), "%d\n%d",
-                                          words, textView.length());
+                                          wordCounter.words(),
+                                          textView.length());
             customView.setText(string);
         }
     }
@@ -3304,63 +3731,296 @@ public class Editor extends Activity
             }
         }
 
-        if (change)
-            recreate(this);
-    }
+        if (change)
+            recreate(this);
+    }
+
+    // loadText
+    private void loadText(CharSequence text)
+    {
+        // Keep the document until the text is all loaded
+        document = null;
+        deltaSave = null;
+        loading = true;
+
+        if (textView != null)
+            textView.setText(text);
+
+        undoHistory.clear();
+        changed = false;
+
+        // Check for saved position, unless going to a match
+        if (select >= 0)
+            position = -1;
+
+        else if (pathMap.containsKey(path))
+            position = pathMap.get(path);
+
+        else
+            position = 0;
+
+        textView.postDelayed(() -> scrollToPosition(), POSITION_DELAY);
+
+        // Check highlighting
+        checkHighlight();
+
+        // Set read only while loading
+        textView.setRawInputType(InputType.TYPE_NULL);
+        textView.setTextIsSelectable(true);
+
+        // Dismiss keyboard
+        textView.clearFocus();
+
+        // Measure time to first paint
+        long start = loader.start;
+        Choreographer.getInstance().postFrameCallback((time) ->
+            textView.post(() ->
+        {
+            firstPaint = System.currentTimeMillis() - start;
+
+            if (BuildConfig.DEBUG)
+                Log.d(TAG, "First paint " + firstPaint + "ms");
+        }));
+
+        // Update menu
+        invalidateOptionsMenu();
+    }
+
+    // appendText
+    private void appendText(CharSequence text)
+    {
+        textView.append(text);
+
+        // Check for saved position
+        textView.postDelayed(() -> scrollToPosition(), POSITION_DELAY);
+    }
+
+    // loadComplete
+    private void loadComplete(TextBuffer text, PieceTable restored)
+    {
+        loading = false;
+
+        // The text becomes the original text of the document, unless
+        // some of it failed to load
+        boolean whole = textView.length() == text.length();
+        if (whole)
+            document = new PieceTable(text);
+
+        else
+            document = new PieceTable(textView.getText().toString());
+
+        changed = false;
+
+        // Keep the size and hash of the file as read, to tell if it
+        // changes, and watch it
+        fileSize = text.getSize();
+        fileHash = text.getHash();
+        watchFile();
+
+        // Journal edits from the file as read, unless carrying on
+        // with the journal after the activity was recreated
+        if (content == null)
+        {
+            if (restored == null)
+                beginJournal(path, file.lastModified(), file.length());
+
+            // Keep the document as read, so saves can write just what
+            // has changed, and auto saves can tell if it's the same.
+            // The file is the document encoded if it's the size the
+            // text was counted as it was read
+            PieceTable saved = document.snapshot();
+            String charset = getEncoder().charset().name();
+            boolean checked = whole && text.getSize() ==
+                text.getBytes(newline, charset.equals("UTF-8"));
+            deltaSave = new DeltaSave(saved, newline, charset, checked);
+            String key = hashKey(path, newline, getEncoder());
+            executor.execute(() ->
+            {
+                hash = XXHash64.hash(saved);
+                hashKey = key;
+            });
+        }
+
+        // Content can't be read back to recover the edits after the
+        // app stops, so the header doesn't fit any file, but it is
+        // read again if the activity is recreated
+        else if (restored == null)
+            beginJournal(content.toString(), 0, -1);
+
+        // Put back the edits made before the activity was recreated,
+        // they are already in the journal
+        if (restored != null)
+        {
+            loading = true;
+            document = null;
+            textView.getEditableText()
+                .replace(0, textView.length(), restored);
+            document = restored;
+            loading = false;
+            changed = true;
+        }
+
+        // Recover edits lost when the app last stopped
+        if (recovery != null && recovery.path.equals(path))
+            recover();
+
+        // Check mode
+        checkMode(text);
+
+        // Set read only
+        if (view)
+        {
+            textView.setRawInputType(InputType.TYPE_NULL);
+            textView.setTextIsSelectable(true);
+
+            // Update boolean
+            edit = false;
+        }
+
+        else
+        {
+            // Set editable with or without suggestions
+            if (suggest)
+                textView.setInputType(InputType.TYPE_CLASS_TEXT |
+                                      InputType.TYPE_TEXT_FLAG_MULTI_LINE);
+            else
+                textView.setInputType(InputType.TYPE_CLASS_TEXT |
+                                      InputType.TYPE_TEXT_FLAG_MULTI_LINE |
+                                      InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
+            // Update boolean
+            edit = true;
+        }
+
+        // Dismiss keyboard
+        textView.clearFocus();
+
+        // Check for saved position
+        textView.postDelayed(() -> scrollToPosition(), POSITION_DELAY);
+
+        // Check for a match to select
+        textView.postDelayed(() -> scrollToSelect(), POSITION_DELAY);
+
+        // Update menu
+        invalidateOptionsMenu();
+    }
+
+    // scrollToPosition
+    private void scrollToPosition()
+    {
+        if (position < 0)
+            return;
+
+        // Wait until the position is in the loaded text
+        if (loading &&
+            textView.getHeight() < position + scrollView.getHeight())
+            return;
+
+        scrollView.smoothScrollTo(0, position);
+        position = -1;
+    }
+
+    // scrollToSelect
+    private void scrollToSelect()
+    {
+        if (select < 0 || textView.getLayout() == null)
+            return;
+
+        int offset = Math.min(select, textView.length());
+        select = -1;
+
+        // Scroll to the line and select it
+        int line = textView.getLayout().getLineForOffset(offset);
+        int pos = textView.getLayout().getLineBaseline(line);
+        scrollView.smoothScrollTo(0, pos - scrollView.getHeight() / 2);
+        textView.setSelection(offset);
+    }
+
+    // Loader
+    private class Loader
+        implements TextBuffer.OnDecodeListener
+    {
+        private long start = System.currentTimeMillis();
+        private EditJournal.Recovery restore;
+        private int loaded;
+
+        // Loader
+        private Loader(EditJournal.Recovery restore)
+        {
+            this.restore = restore;
+        }
+
+        // onDecode
+        @Override
+        public void onDecode(TextBuffer text, int length)
+        {
+            // Post the first screenful, then batches
+            int size = (loaded == 0)? LOAD_FIRST: LOAD_BATCH;
+            if (length - loaded < size)
+                return;
+
+            CharSequence chunk = text.subSequence(loaded, length);
+            boolean first = (loaded == 0);
+            loaded = length;
+
+            runOnUiThread(() ->
+            {
+                // Check this is still the current load
+                if (loader != this)
+                    return;
+
+                if (first)
+                    loadText(chunk);
+
+                else
+                    appendText(chunk);
+            });
+        }
+
+        // onComplete
+        public void onComplete(TextBuffer text)
+        {
+            boolean first = (loaded == 0);
+            CharSequence rest = first? text:
+                text.subSequence(Math.min(loaded, text.length()),
+                                 text.length());
+
+            // Replay the journal on the text as read, here in the
+            // background
+            PieceTable restored = (restore != null)? restore(text): null;
 
-    // loadText
-    private void loadText(CharSequence text)
-    {
-        if (textView != null)
-            textView.setText(text);
+            runOnUiThread(() ->
+            {
+                // Check this is still the current load
+                if (loader != this)
+                    return;
 
-        changed = false;
+                if (first)
+                    loadText(rest);
 
-        // Check for saved position
-        if (pathMap.containsKey(path))
-            textView.postDelayed(() ->
-                                 scrollView.smoothScrollTo
-                                 (0, pathMap.get(path)),
-                                 POSITION_DELAY);
-        else
-            textView.postDelayed(() ->
-                                 scrollView.smoothScrollTo(0, 0),
-                                 POSITION_DELAY);
-        // Check mode
-        checkMode(text);
+                else
+                    appendText(rest);
 
-        // Check highlighting
-        checkHighlight();
+                newline = text.getNewline();
 
-        // Set read only
-        if (view)
-        {
-            textView.setRawInputType(InputType.TYPE_NULL);
-            textView.setTextIsSelectable(true);
+                // Not if the text was read differently to when the
+                // edits were made
+                boolean fits = (restore == null ||
+                                restore.fits(getEncoder().charset().name(),
+                                             newline));
+                if (!fits)
+                    recoverFailed();
 
-            // Update boolean
-            edit = false;
+                loadComplete(text, fits? restored: null);
+            });
         }
 
-        else
+        // restore
+        private PieceTable restore(TextBuffer text)
         {
-            // Set editable with or without suggestions
-            if (suggest)
-                textView.setInputType(InputType.TYPE_CLASS_TEXT |
-                                      InputType.TYPE_TEXT_FLAG_MULTI_LINE);
-            else
-                textView.setInputType(InputType.TYPE_CLASS_TEXT |
-                                      InputType.TYPE_TEXT_FLAG_MULTI_LINE |
-                                      InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
-            // Update boolean
-            edit = true;
+            // Null if the edits don't fit the text
+            PieceTable table = new PieceTable(text);
+            return restore.replay(table)? table: null;
         }
-
-        // Dismiss keyboard
-        textView.clearFocus();
-
-        // Update menu
-        invalidateOptionsMenu();
     }
 
     // QueryTextListener
@@ -3369,12 +4029,25 @@ public class Editor extends Activity
     {
         private BackgroundColorSpan span = new
             BackgroundColorSpan(Color.YELLOW);
+        private SearchEngine engine = new SearchEngine(FOUND_COLOUR);
+        private ExecutorService searcher =
+            Executors.newSingleThreadExecutor();
+        private Runnable update = () -> highlightMatches();
+        private Future<?> future;
         private Editable editable;
-        private Matcher matcher;
-        private Pattern pattern;
+        private String query;
+        private int match = -1;
+        private int edits;
         private int index;
         private int height;
 
+        // shutdown
+        private void shutdown()
+        {
+            textView.removeCallbacks(update);
+            searcher.shutdownNow();
+        }
+
         // onQueryTextChange
         @Override
         @SuppressWarnings("deprecation")
@@ -3387,47 +4060,29 @@ public class Editor extends Activity
             // Reset the index and clear highlighting
             if (newText.length() == 0)
             {
+                if (future != null)
+                    future.cancel(true);
+
                 index = 0;
+                match = -1;
+                query = null;
                 editable.removeSpan(span);
+                engine.unhighlight(editable);
+                wordCountText();
                 return false;
             }
 
-            // Check pattern
-            try
-            {
-                pattern = Pattern.compile(newText, Pattern.MULTILINE);
-                matcher = pattern.matcher(editable);
-            }
-
-            catch (Exception e)
-            {
-                return false;
-            }
-
-            // Find text
-            if (matcher.find(index))
+            // Find all the matches, the engine keeps the patterns
+            query = newText;
+            search(() ->
             {
-                // Get index
-                index = matcher.start();
-
-                // Check layout
-                if (textView.getLayout() == null)
-                    return false;
-
-                // Get text position
-                int line = textView.getLayout().getLineForOffset(index);
-                int pos = textView.getLayout().getLineBaseline(line);
-
-                // Scroll to it
-                scrollView.smoothScrollTo(0, pos - height / 2);
-
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+                if (engine.count() == 0)
+                    clear(getString(R.string.matches, 0, 0));
 
-            else
-                index = 0;
+                // Find text
+                else
+                    show(engine.next(index));
+            });
 
             return true;
         }
@@ -3436,63 +4091,183 @@ public class Editor extends Activity
         @Override
         public boolean onQueryTextSubmit(String query)
         {
-            // Check matcher
-            if (matcher == null)
+            // Check match
+            if (match < 0)
                 return false;
 
             // Find next text
-            if (matcher.find())
+            search(() ->
             {
-                // Get index
-                index = matcher.start();
-
-                // Get text position
-                int line = textView.getLayout().getLineForOffset(index);
-                int pos = textView.getLayout().getLineBaseline(line);
+                if (engine.count() > 0)
+                    show(engine.next(index + 1));
+            });
 
-                // Scroll to it
-                scrollView.smoothScrollTo(0, pos - height / 2);
+            return true;
+        }
 
-                // Highlight it
-                editable.setSpan(span, matcher.start(), matcher.end(),
-                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
+        // findPrevious
+        public boolean findPrevious(String query)
+        {
+            // Check match
+            if (match < 0)
+                return false;
 
-            else
+            // Find previous text
+            search(() ->
             {
-                matcher.reset();
-                index = 0;
-            }
+                if (engine.count() > 0)
+                    show(engine.previous(index));
+            });
 
             return true;
         }
-    }
 
-    // readFile
-    private CharSequence readFile(File file)
-    {
-        StringBuilder text = new StringBuilder();
-        // Open file
-        try (BufferedReader reader = new BufferedReader
-             (new InputStreamReader
-              (new BufferedInputStream(new FileInputStream(file)))))
+        // edit
+        public void edit()
+        {
+            edits++;
+            engine.edit();
+            scrolled();
+        }
+
+        // scrolled
+        public void scrolled()
         {
-            String line;
-            while ((line = reader.readLine()) != null)
+            // Highlight the matches in view when scrolling stops
+            if (query == null)
+                return;
+
+            textView.removeCallbacks(update);
+            textView.postDelayed(update, UPDATE_DELAY);
+        }
+
+        // search
+        private void search(Runnable found)
+        {
+            // Find again if the text has changed
+            editable = textView.getEditableText();
+            if (engine.isCurrent(query))
             {
-                text.append(line);
-                text.append(System.getProperty("line.separator"));
+                found.run();
+                return;
             }
 
-            return text;
+            // Search a snapshot in the background, giving up if it
+            // takes too long, or if there's a new search
+            if (future != null)
+                future.cancel(true);
+
+            // Not if the activity is going
+            if (isFinishing() || isDestroyed())
+                return;
+
+            String query = this.query;
+            int edits = this.edits;
+            CharSequence text = (document != null)?
+                document.snapshot(): editable.toString();
+            DeadlineText deadline = new DeadlineText(text, budget);
+            future = searcher.submit(() ->
+            {
+                try
+                {
+                    SearchEngine.Matches matches =
+                        engine.search(deadline, query);
+
+                    runOnUiThread(() ->
+                    {
+                        // Discard if out of date
+                        if (!query.equals(this.query) || edits != this.edits)
+                            return;
+
+                        engine.apply(matches);
+                        found.run();
+                    });
+                }
+
+                catch (DeadlineText.TimeoutException e)
+                {
+                    runOnUiThread(() ->
+                    {
+                        if (query.equals(this.query))
+                            clear(getString(R.string.searchTimeout));
+                    });
+                }
+
+                // Cancelled or bad pattern
+                catch (Exception e) {}
+            });
         }
 
-        catch (Exception e)
+        // clear
+        private void clear(String status)
         {
-            e.printStackTrace();
+            index = 0;
+            match = -1;
+            editable.removeSpan(span);
+            engine.unhighlight(editable);
+
+            if (customView != null)
+                customView.setText(status);
+        }
+
+        // show
+        private void show(int match)
+        {
+            // Get index
+            this.match = match;
+            index = engine.start(match);
+
+            if (customView != null)
+                customView.setText(getString(R.string.matches, match + 1,
+                                             engine.count()));
+
+            // Check layout
+            if (textView.getLayout() == null)
+                return;
+
+            // Get text position
+            int line = textView.getLayout().getLineForOffset(index);
+            int pos = textView.getLayout().getLineBaseline(line);
+
+            // Scroll to it
+            scrollView.smoothScrollTo(0, pos - height / 2);
+
+            // Highlight it
+            if (engine.end(match) > index)
+                editable.setSpan(span, index, engine.end(match),
+                                 Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+            // And the others in view
+            scrolled();
         }
 
-        return text;
+        // highlightMatches
+        private void highlightMatches()
+        {
+            if (query == null || textView.getLayout() == null)
+                return;
+
+            search(() ->
+            {
+                // Get visible extent
+                int top = scrollView.getScrollY();
+                int height = scrollView.getHeight();
+
+                int line = textView.getLayout().getLineForVertical(top);
+                int start = textView.getLayout().getLineStart(line);
+
+                line = textView.getLayout().getLineForVertical(top + height);
+                int end = textView.getLayout().getLineEnd(line);
+
+                long time = System.nanoTime();
+                engine.highlight(editable, start, end);
+
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, "Matches " + engine.added + " added, " +
+                          engine.removed + " removed, " +
+                          (System.nanoTime() - time) / 1000 + "us");
+            });
+        }
     }
 
     // ScaleListener
@@ -3514,7 +4289,20 @@ public class Editor extends Activity
 
     private void doFind(Context context, String search)
     {
-        List<File> matchList = new ArrayList<>();
+        Pattern pattern = null;
+
+        try
+        {
+            // Compile search pattern
+            pattern = Pattern.compile(search, Pattern.MULTILINE);
+        }
+
+        catch (Exception e)
+        {
+            return;
+        }
+
+        List<FindIndex.Match> matchList = new ArrayList<>();
         List<File> entries = new ArrayList<>();
 
         // Get entry list
@@ -3524,77 +4312,214 @@ public class Editor extends Activity
             entries.add(entry);
         }
 
+        // Build dialog, which is filled in as matches are found
+        ArrayAdapter<String> adapter =
+            new ArrayAdapter<>(context, android.R.layout.simple_list_item_1);
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle(R.string.findAll);
+        builder.setAdapter(adapter, (dialog, which) ->
+        {
+            FindIndex.Match match = matchList.get(which);
+            Uri uri = Uri.fromFile(match.file);
+            // Open the entry chosen at the match
+            select = match.offset;
+            readFile(uri);
+
+            // Put the search text back - why it disappears I have no
+            // idea or why I have to do it after a delay
+            searchView.postDelayed(() ->
+                searchView.setQuery(search, false), FIND_DELAY);
+        });
+
+        // Stop finding if the dialog goes
+        AtomicBoolean cancel = new AtomicBoolean();
+        builder.setOnDismissListener((dialog) -> cancel.set(true));
+        builder.setNegativeButton(android.R.string.cancel, null);
+        AlertDialog dialog = builder.show();
+
+        // Find in parallel, apart from the executor that loads files
+        if (findPool == null)
+            findPool = new ForkJoinPool
+                (Math.min(Runtime.getRuntime().availableProcessors(),
+                          FIND_THREADS));
+
+        Pattern compiled = pattern;
+        int budget = this.budget;
+        findPool.execute(() ->
+        {
+            long start = System.currentTimeMillis();
+            FindIndex index = getFindIndex();
+            int query[] = FindIndex.query(compiled);
+            AtomicInteger searched = new AtomicInteger();
+            AtomicInteger timeouts = new AtomicInteger();
+
+            // One task per file
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (File file : entries)
+                tasks.add(ForkJoinTask.adapt(() ->
+                {
+                    if (cancel.get())
+                        return;
+
+                    List<FindIndex.Match> matches;
+                    try
+                    {
+                        matches = index.find(file, compiled, query, budget);
+                    }
+
+                    // Give up on this file
+                    catch (DeadlineText.TimeoutException e)
+                    {
+                        timeouts.incrementAndGet();
+                        return;
+                    }
+
+                    if (matches == null)
+                        return;
+
+                    searched.incrementAndGet();
+                    if (matches.isEmpty())
+                        return;
+
+                    runOnUiThread(() ->
+                    {
+                        for (FindIndex.Match match : matches)
+                        {
+                            if (cancel.get() ||
+                                matchList.size() >= FindIndex.MAX_MATCHES)
+                            {
+                                cancel.set(true);
+                                break;
+                            }
+
+                            // Remove path prefix
+                            String path = match.file.getPath();
+                            String name =
+                                path.replaceFirst(Environment
+                                                  .getExternalStorageDirectory()
+                                                  .getPath() + File.separator,
+                                                  "");
+
+                            matchList.add(match);
+                            adapter.add(name + ":" + match.line + ": " +
+                                        match.text);
+                        }
+                    });
+                }));
+
+            ForkJoinTask.invokeAll(tasks);
+            index.retain(entries);
+            index.save();
+
+            if (timeouts.get() > 0)
+                runOnUiThread(() ->
+                    dialog.setTitle(R.string.searchTimeout));
+
+            if (BuildConfig.DEBUG)
+                Log.d(TAG, "Find " + entries.size() + " files, " +
+                      searched + " searched, " +
+                      timeouts + " timed out, " +
+                      (System.currentTimeMillis() - start) + "ms" +
+                      (cancel.get()? ", cancelled": ""));
+        });
+    }
+
+    // doReplace
+    private void doReplace(String search, String replace)
+    {
+        Replacer replacer;
+
+        try
+        {
+            // Compile search pattern and replacement
+            Pattern pattern = Pattern.compile(search, Pattern.MULTILINE);
+            replacer = new Replacer(pattern, replace);
+        }
+
+        catch (Exception e)
+        {
+            alertDialog(this, R.string.replaceAll, e.getMessage(),
+                        R.string.ok);
+            return;
+        }
+
+        // Find the matches in a snapshot in the background
+        int edits = this.edits;
+        CharSequence text = (document != null)?
+            document.snapshot(): textView.getText().toString();
+        DeadlineText deadline = new DeadlineText(text, budget);
         executor.execute(() ->
         {
-            Pattern pattern = null;
+            long start = System.currentTimeMillis();
+            Replacer.Result result;
 
             try
             {
-                // Compile search pattern
-                pattern = Pattern.compile(search, Pattern.MULTILINE);
+                result = replacer.replace(deadline);
             }
 
-            catch (Exception e) {}
+            catch (DeadlineText.TimeoutException e)
+            {
+                runOnUiThread(() ->
+                    alertDialog(this, R.string.replaceAll,
+                                getString(R.string.searchTimeout),
+                                R.string.ok));
+                return;
+            }
 
-            // Check the entries
-            for (File file : entries)
+            catch (Exception e)
             {
-                CharSequence content = readFile(file);
-                Matcher matcher = pattern.matcher(content);
-                if (matcher.find())
-                    matchList.add(file);
+                runOnUiThread(() ->
+                    alertDialog(this, R.string.replaceAll, e.getMessage(),
+                                R.string.ok));
+                return;
             }
 
             runOnUiThread(() ->
             {
-                // Build dialog
-                AlertDialog.Builder builder = new AlertDialog.Builder(context);
-                builder.setTitle(R.string.findAll);
-
-                // If found populate dialog
-                if (!matchList.isEmpty())
+                // Give up if the text changed in the meantime
+                if (edits != this.edits)
                 {
-                    List<String> choiceList = new ArrayList<>();
-                    for (File file : matchList)
-                    {
-                        // Remove path prefix
-                        String path = file.getPath();
-                        String name =
-                            path.replaceFirst(Environment
-                                              .getExternalStorageDirectory()
-                                              .getPath() + File.separator, "");
-
-                        choiceList.add(name);
-                    }
-
-                    String[] choices = choiceList.toArray(new String[0]);
-                    builder.setItems(choices, (dialog, which) ->
-                    {
-                        File file = matchList.get(which);
-                        Uri uri = Uri.fromFile(file);
-                        // Open the entry chosen
-                        readFile(uri);
-
-                        // Put the search text back - why it
-                        // disappears I have no idea or why I have to
-                        // do it after a delay
-                        searchView.postDelayed(() ->
-                            searchView.setQuery(search, false),
-                                               FIND_DELAY);
-                    });
+                    alertDialog(this, R.string.replaceAll,
+                                getString(R.string.textChanged),
+                                R.string.ok);
+                    return;
                 }
 
-                builder.setNegativeButton(android.R.string.cancel, null);
-                builder.show();
+                // Replace everything with one edit, so the watchers
+                // only run once
+                long time = System.currentTimeMillis();
+                if (result.count > 0)
+                    textView.getEditableText()
+                        .replace(result.start, result.end, result.text);
+
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, "Replace " + result.count + " matches, " +
+                          (time - start) + "ms, applied " +
+                          (System.currentTimeMillis() - time) + "ms");
+
+                alertDialog(this, R.string.replaceAll,
+                            getString(R.string.replaced, result.count),
+                            R.string.ok);
             });
         });
     }
 
-    // doRead
-    private void doRead(Context context, Uri uri)
+    // getFindIndex
+    private synchronized FindIndex getFindIndex()
     {
-        StringBuilder stringBuilder = new StringBuilder();
+        // Load the index, which only reads the files that might
+        // match, and any that have changed
+        if (findIndex == null)
+            findIndex = FindIndex.load(new File(getFilesDir(),
+                                                FindIndex.INDEX));
+        return findIndex;
+    }
 
+    // doRead
+    private void doRead(Context context, Uri uri, long size,
+                        EditJournal.Recovery restore)
+    {
         // Default UTF-8
         if (match == null)
         {
@@ -3602,46 +4527,28 @@ public class Editor extends Activity
             getActionBar().setSubtitle(match);
         }
 
+        Loader loader = new Loader(restore);
+        this.loader = loader;
+
         executor.execute(() ->
         {
-            try (BufferedInputStream in = new BufferedInputStream
-                 (getContentResolver().openInputStream(uri)))
+            long time = System.currentTimeMillis();
+            TextBuffer text = new TextBuffer();
+
+            try
             {
-                // Create reader
-                BufferedReader reader = null;
-                if (match.equals(getString(R.string.detect)))
+                // Map local files, a new file being restored hasn't
+                // been written yet
+                if (FILE.equalsIgnoreCase(uri.getScheme()))
                 {
-                    // Detect charset, using UTF-8 hint
-                    CharsetMatch charsetMatch = new
-                        CharsetDetector().setDeclaredEncoding(UTF_8)
-                        .setText(in).detect();
-
-                    if (charsetMatch != null)
-                    {
-                        match = charsetMatch.getName();
-                        runOnUiThread(() ->
-                            getActionBar().setSubtitle(match));
-                        reader = new BufferedReader(charsetMatch.getReader());
-                    }
-
-                    else
-                        reader = new BufferedReader
-                            (new InputStreamReader(in));
-
-                    if (BuildConfig.DEBUG && match != null)
-                        Log.d(TAG, "Charset " + match);
+                    File file = new File(uri.getPath());
+                    DeltaSave.rollback(getCacheDir(), file.getPath());
+                    if (restore == null || file.exists())
+                        text = readMapped(file, loader);
                 }
 
                 else
-                     reader = new BufferedReader
-                         (new InputStreamReader(in, match));
-
-                String line;
-                while ((line = reader.readLine()) != null)
-                {
-                    stringBuilder.append(line);
-                    stringBuilder.append(System.getProperty("line.separator"));
-                }
+                    text = readStream(uri, size, loader);
             }
 
             catch (Exception e)
@@ -3653,7 +4560,80 @@ public class Editor extends Activity
                 e.printStackTrace();
             }
 
-            runOnUiThread(() -> loadText(stringBuilder));
+            if (BuildConfig.DEBUG)
+            {
+                Runtime runtime = Runtime.getRuntime();
+                long heap = runtime.totalMemory() - runtime.freeMemory();
+                Log.d(TAG, "Read " + (System.currentTimeMillis() - time) +
+                      "ms, heap " + FileUtils.getReadableFileSize(heap));
+            }
+
+            loader.onComplete(text);
         });
     }
+
+    // readMapped
+    private TextBuffer readMapped(File file, Loader loader) throws Exception
+    {
+        try (MappedFile mapped = new MappedFile(file))
+        {
+            Charset charset;
+            if (match.equals(getString(R.string.detect)))
+                // Detect charset from the first page, using UTF-8 hint
+                charset = getCharset(new CharsetDetector()
+                                     .setDeclaredEncoding(UTF_8)
+                                     .setText(mapped.head()).detect());
+
+            else
+                charset = Charset.forName(match);
+
+            return TextBuffer.decode(mapped, newDecoder(charset), loader);
+        }
+    }
+
+    // readStream
+    private TextBuffer readStream(Uri uri, long size, Loader loader)
+        throws Exception
+    {
+        try (BufferedInputStream in = new BufferedInputStream
+             (getContentResolver().openInputStream(uri)))
+        {
+            Charset charset;
+            if (match.equals(getString(R.string.detect)))
+                // Detect charset, using UTF-8 hint
+                charset = getCharset(new CharsetDetector()
+                                     .setDeclaredEncoding(UTF_8)
+                                     .setText(in).detect());
+
+            else
+                charset = Charset.forName(match);
+
+            return TextBuffer.decode(Channels.newChannel(in),
+                                     newDecoder(charset), size, loader);
+        }
+    }
+
+    // getCharset
+    private Charset getCharset(CharsetMatch charsetMatch)
+    {
+        if (charsetMatch == null)
+            return Charset.defaultCharset();
+
+        match = charsetMatch.getName();
+        runOnUiThread(() -> getActionBar().setSubtitle(match));
+
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, "Charset " + match);
+
+        return Charset.forName(match);
+    }
+
+    // newDecoder
+    static CharsetDecoder newDecoder(Charset charset)
+    {
+        // Replace bad input as InputStreamReader does
+        return charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
 }
@@ -0,0 +1,135 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// FileWatcher
+public class FileWatcher extends FileObserver
+{
+    public final static String TAG = "FileWatcher";
+
+    // Most bytes to add to the text, more is read again
+    public final static int MAX_TAIL = 4 * 1024 * 1024;
+
+    // Saves write a temporary file and rename it, so watch the folder
+    // for the name
+    public final static int EVENTS =
+        MODIFY | CLOSE_WRITE | MOVED_TO | CREATE | DELETE;
+
+    private final String name;
+    private final OnChangeListener listener;
+
+    // FileWatcher
+    @SuppressWarnings("deprecation")
+    public FileWatcher(File file, OnChangeListener listener)
+    {
+        super(file.getParent(), EVENTS);
+
+        name = file.getName();
+        this.listener = listener;
+    }
+
+    // onEvent
+    @Override
+    public void onEvent(int event, String path)
+    {
+        // Called on the observer thread
+        if (name.equals(path))
+            listener.onChange();
+    }
+
+    // readTail
+    public static Tail readTail(File file, long size, long hash)
+        throws IOException
+    {
+        // Returns the lines added to the end of the file, or null if
+        // the start has changed too, checking the start against the
+        // hash and carrying on hashing the lines
+        try (MappedFile mapped = new MappedFile(file))
+        {
+            long length = mapped.size();
+            if (length < size || length - size > MAX_TAIL)
+                return null;
+
+            XXHash64 xxHash = new XXHash64();
+            for (long position = 0; position < size;
+                 position += MappedFile.PAGE_SIZE)
+            {
+                ByteBuffer page = mapped.page(position);
+                page.limit((int) Math.min(page.limit(), size - position));
+                xxHash.update(page);
+            }
+
+            if (xxHash.digest() != hash)
+                return null;
+
+            // Only whole lines, the last may still be being written
+            byte bytes[] = new byte[(int) (length - size)];
+            for (int offset = 0; offset < bytes.length;)
+            {
+                ByteBuffer page = mapped.page(size + offset);
+                int count = Math.min(page.remaining(), bytes.length - offset);
+                page.get(bytes, offset, count);
+                offset += count;
+            }
+
+            int count = bytes.length;
+            while (count > 0 && bytes[count - 1] != '\n')
+                count--;
+
+            xxHash.update(ByteBuffer.wrap(bytes, 0, count));
+            return new Tail(bytes, count, size + count, xxHash.digest());
+        }
+    }
+
+    // Tail
+    public static class Tail
+    {
+        public final byte bytes[];
+        public final int count;
+        public final long size;
+        public final long hash;
+
+        // Tail
+        private Tail(byte bytes[], int count, long size, long hash)
+        {
+            this.bytes = bytes;
+            this.count = count;
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    // OnChangeListener
+    public interface OnChangeListener
+    {
+        // Called on the observer thread
+        abstract void onChange();
+    }
+}
@@ -0,0 +1,549 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// FindIndex
+public class FindIndex
+{
+    public final static String TAG = "FindIndex";
+
+    public final static String INDEX = "find.index";
+
+    // Bump if the saved form changes
+    public final static int FORMAT = 1;
+
+    public final static int MAX_MATCHES = 500;
+    public final static int MAX_TEXT = 80;
+
+    private final static int BITS_PER_TRIGRAM = 10;
+    private final static int MIN_BITS = 512;
+    private final static int MAX_BITS = 1 << 20;
+
+    private final static Pattern COMMENTS =
+        Pattern.compile("\\(\\?[a-z]*x");
+
+    private File file;
+
+    // Files are found in parallel
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean changed;
+
+    // FindIndex
+    private FindIndex(File file)
+    {
+        this.file = file;
+    }
+
+    // load
+    public static FindIndex load(File file)
+    {
+        FindIndex index = new FindIndex(file);
+        if (!file.exists())
+            return index;
+
+        try (DataInputStream in = new DataInputStream
+             (new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != FORMAT)
+                return index;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                Entry entry = new Entry();
+                String path = in.readUTF();
+                entry.modified = in.readLong();
+                entry.length = in.readLong();
+                entry.bits = new long[in.readInt()];
+                byte bytes[] = new byte[entry.bits.length * 8];
+                in.readFully(bytes);
+                ByteBuffer.wrap(bytes).asLongBuffer().get(entry.bits);
+
+                index.entries.put(path, entry);
+            }
+        }
+
+        catch (Exception e)
+        {
+            Log.w(TAG, file.getName(), e);
+            index.entries.clear();
+        }
+
+        return index;
+    }
+
+    // save
+    public synchronized void save()
+    {
+        if (!changed)
+            return;
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream
+             (new BufferedOutputStream(new FileOutputStream(temp))))
+        {
+            out.writeInt(FORMAT);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e: entries.entrySet())
+            {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.modified);
+                out.writeLong(entry.length);
+                out.writeInt(entry.bits.length);
+                ByteBuffer bytes = ByteBuffer.allocate(entry.bits.length * 8);
+                bytes.asLongBuffer().put(entry.bits);
+                out.write(bytes.array());
+            }
+        }
+
+        catch (Exception e)
+        {
+            Log.w(TAG, file.getName(), e);
+            temp.delete();
+            return;
+        }
+
+        if (temp.renameTo(file))
+            changed = false;
+    }
+
+    // query
+    public static int[] query(Pattern pattern)
+    {
+        return trigrams(literals(pattern.pattern()));
+    }
+
+    // find
+    public List<Match> find(File file, Pattern pattern, int query[],
+                            int budget)
+    {
+        String path = file.getPath();
+        Entry entry = entries.get(path);
+        CharSequence text = null;
+
+        // Index files that are new or have changed
+        if (entry == null || entry.modified != file.lastModified() ||
+            entry.length != file.length())
+        {
+            text = read(file);
+            entry = index(file, text);
+            entries.put(path, entry);
+            changed = true;
+        }
+
+        // Skip files without all the trigrams in the query
+        if (!entry.contains(query))
+            return null;
+
+        if (text == null)
+            text = read(file);
+
+        List<Match> matches = new ArrayList<>();
+        search(file, text, pattern, budget, matches);
+        return matches;
+    }
+
+    // retain
+    public void retain(List<File> files)
+    {
+        // Forget files no longer in the list
+        Set<String> paths = new HashSet<>();
+        for (File f: files)
+            paths.add(f.getPath());
+
+        if (entries.keySet().retainAll(paths))
+            changed = true;
+    }
+
+    // search
+    private static void search(File file, CharSequence text,
+                               Pattern pattern, int budget,
+                               List<Match> matches)
+    {
+        List<Integer> offsets = new ArrayList<>();
+
+        // Literal searches don't need the regex
+        LiteralSearch literal = LiteralSearch.compile(pattern.pattern());
+        if (literal != null)
+            literal.find(text, 0, (offset) ->
+            {
+                // Leave out overlapping matches, as a regex would
+                int size = offsets.size();
+                if (size > 0 &&
+                    offset < offsets.get(size - 1) + literal.length())
+                    return true;
+
+                offsets.add(offset);
+                return offsets.size() < MAX_MATCHES;
+            });
+
+        else
+        {
+            // Give up if the regex takes too long
+            Matcher matcher =
+                pattern.matcher(new DeadlineText(text, budget));
+            while (offsets.size() < MAX_MATCHES && matcher.find())
+                offsets.add(matcher.start());
+        }
+
+        int line = 1;
+        int position = 0;
+        for (int offset: offsets)
+        {
+            for (; position < offset; position++)
+                if (text.charAt(position) == '\n')
+                    line++;
+
+            // Text of the line, cut down to size
+            int start = offset;
+            while (start > 0 && text.charAt(start - 1) != '\n' &&
+                   offset - start < MAX_TEXT / 2)
+                start--;
+            int end = offset;
+            while (end < text.length() && text.charAt(end) != '\n' &&
+                   end - start < MAX_TEXT)
+                end++;
+
+            matches.add(new Match(file, line, offset,
+                                  text.subSequence(start, end)
+                                  .toString().trim()));
+        }
+    }
+
+    // read
+    private static CharSequence read(File file)
+    {
+        try (MappedFile mapped = new MappedFile(file))
+        {
+            return TextBuffer.decode(mapped, Editor.newDecoder
+                                     (Charset.defaultCharset()), null);
+        }
+
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+
+        return new TextBuffer();
+    }
+
+    // index
+    private static Entry index(File file, CharSequence text)
+    {
+        Entry entry = new Entry();
+        entry.modified = file.lastModified();
+        entry.length = file.length();
+
+        // Text has far fewer different trigrams than characters, so
+        // size the filter by those
+        int trigrams[] = new int[Math.max(text.length() - 2, 0)];
+        for (int i = 0; i < trigrams.length; i++)
+            trigrams[i] = trigram(text.charAt(i), text.charAt(i + 1),
+                                  text.charAt(i + 2));
+        Arrays.sort(trigrams);
+
+        int count = 0;
+        for (int i = 0; i < trigrams.length; i++)
+            if (i == 0 || trigrams[i] != trigrams[i - 1])
+                trigrams[count++] = trigrams[i];
+
+        int size = MIN_BITS;
+        while (size < MAX_BITS && size < count * BITS_PER_TRIGRAM)
+            size <<= 1;
+        entry.bits = new long[size / 64];
+
+        for (int i = 0; i < count; i++)
+            entry.add(trigrams[i]);
+
+        return entry;
+    }
+
+    // literals
+    public static List<String> literals(String regex)
+    {
+        // Strings that any match must contain, only looking outside
+        // groups and classes, and giving up on alternatives or
+        // extended syntax
+        List<String> list = new ArrayList<>();
+        if (regex.indexOf('|') >= 0 || COMMENTS.matcher(regex).find())
+            return list;
+
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < regex.length())
+        {
+            char c = regex.charAt(i);
+
+            // Skip groups
+            if (depth > 0)
+            {
+                if (c == '\\')
+                    i++;
+
+                else if (c == '[')
+                    i = skipClass(regex, i) - 1;
+
+                else if (c == '(')
+                    depth++;
+
+                else if (c == ')')
+                    depth--;
+
+                i++;
+                continue;
+            }
+
+            switch (c)
+            {
+            case '\\':
+                if (i + 1 < regex.length() &&
+                    !Character.isLetterOrDigit(regex.charAt(i + 1)))
+                    run.append(regex.charAt(i + 1));
+
+                else
+                    flush(run, list);
+                i += 2;
+                break;
+
+            case '[':
+                flush(run, list);
+                i = skipClass(regex, i);
+                break;
+
+            case '(':
+                flush(run, list);
+                depth++;
+                i++;
+                break;
+
+            case '?':
+            case '*':
+                // The last character is optional
+                if (run.length() > 0)
+                    run.setLength(run.length() - 1);
+                flush(run, list);
+                i = skipQuantifier(regex, i + 1);
+                break;
+
+            case '{':
+                if (regex.startsWith("{0", i) && run.length() > 0)
+                    run.setLength(run.length() - 1);
+                flush(run, list);
+                i = regex.indexOf('}', i);
+                i = (i < 0)? regex.length(): skipQuantifier(regex, i + 1);
+                break;
+
+            case '+':
+                flush(run, list);
+                i = skipQuantifier(regex, i + 1);
+                break;
+
+            case '.':
+            case '^':
+            case '$':
+            case ')':
+                flush(run, list);
+                i++;
+                break;
+
+            default:
+                run.append(c);
+                i++;
+                break;
+            }
+        }
+
+        // A trailing quantifier has already been dealt with
+        flush(run, list);
+        return list;
+    }
+
+    // flush
+    private static void flush(StringBuilder run, List<String> list)
+    {
+        if (run.length() >= 3)
+            list.add(run.toString());
+
+        run.setLength(0);
+    }
+
+    // skipClass
+    private static int skipClass(String regex, int i)
+    {
+        // Past the closing bracket, which may be first
+        i++;
+        if (i < regex.length() && regex.charAt(i) == '^')
+            i++;
+        if (i < regex.length() && regex.charAt(i) == ']')
+            i++;
+
+        int depth = 1;
+        while (i < regex.length() && depth > 0)
+        {
+            char c = regex.charAt(i++);
+            if (c == '\\')
+                i++;
+
+            else if (c == '[')
+                depth++;
+
+            else if (c == ']')
+                depth--;
+        }
+
+        return i;
+    }
+
+    // skipQuantifier
+    private static int skipQuantifier(String regex, int i)
+    {
+        // Lazy and possessive suffixes
+        if (i < regex.length() &&
+            (regex.charAt(i) == '?' || regex.charAt(i) == '+'))
+            i++;
+
+        return i;
+    }
+
+    // trigrams
+    private static int[] trigrams(List<String> literals)
+    {
+        List<Integer> list = new ArrayList<>();
+        for (String s: literals)
+            for (int i = 0; i + 2 < s.length(); i++)
+                list.add(trigram(s.charAt(i), s.charAt(i + 1),
+                                 s.charAt(i + 2)));
+
+        int trigrams[] = new int[list.size()];
+        for (int i = 0; i < trigrams.length; i++)
+            trigrams[i] = list.get(i);
+
+        return trigrams;
+    }
+
+    // trigram
+    private static int trigram(char a, char b, char c)
+    {
+        // Ignoring case, so the index works for case insensitive
+        // searches too
+        return (Character.toLowerCase(a) * 31 + Character.toLowerCase(b)) *
+            31 + Character.toLowerCase(c);
+    }
+
+    // Entry
+    private static class Entry
+    {
+        long modified;
+        long length;
+
+        // Bloom filter of the trigrams in the file
+        long bits[];
+
+        // add
+        void add(int trigram)
+        {
+            int size = bits.length * 64;
+            int h1 = mix(trigram);
+            int h2 = mix(h1);
+            for (int i = 0; i < 3; i++)
+            {
+                int bit = (h1 + i * h2) & (size - 1);
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        // contains
+        boolean contains(int trigrams[])
+        {
+            int size = bits.length * 64;
+            for (int trigram: trigrams)
+            {
+                int h1 = mix(trigram);
+                int h2 = mix(h1);
+                for (int i = 0; i < 3; i++)
+                {
+                    int bit = (h1 + i * h2) & (size - 1);
+                    if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                        return false;
+                }
+            }
+
+            return true;
+        }
+
+        // mix
+        static int mix(int h)
+        {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    // Match
+    public static class Match
+    {
+        public final File file;
+        public final int line;
+        public final int offset;
+        public final String text;
+
+        // Match
+        public Match(File file, int line, int offset, String text)
+        {
+            this.file = file;
+            this.line = line;
+            this.offset = offset;
+            this.text = text;
+        }
+    }
+}
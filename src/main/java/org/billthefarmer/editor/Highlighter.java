@@ -0,0 +1,1273 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+
+import java.util.Arrays;
+
+// Highlighter
+public class Highlighter
+{
+    public final static String TAG = "Highlighter";
+
+    public final static int CHECK_SIZE = 4096;
+    public final static int POOL_SIZE = 1024;
+    public final static int MAX_EDITS = 4096;
+
+    // Lexer state at the start of a line, or inside block comment
+    // state - 1
+    private final static int NORMAL = 0;
+
+    private final static String ORG_DELIMS = "*~/+=";
+    private final static String MD_DELIMS = "*~";
+
+    private Syntax syntax;
+
+    // State checkpoints at line starts, in order
+    private int checkOffsets[] = new int[64];
+    private int checkStates[] = new int[64];
+    private int checkCount;
+
+    // Lines last highlighted, in order
+    private Lines lines = new Lines();
+
+    // Edits not yet applied to the lines and checkpoints
+    private final Edits edits = new Edits();
+    private int version;
+
+    private Tokens tokens;
+    private boolean emit;
+
+    // Spans no longer in use, by colour
+    private Pool pools[] = new Pool[0];
+    private int spanStarts[] = new int[64];
+    private int spanEnds[] = new int[64];
+
+    // Highlighter
+    public Highlighter(Syntax syntax)
+    {
+        this.syntax = syntax;
+    }
+
+    // getSyntax
+    public Syntax getSyntax()
+    {
+        return syntax;
+    }
+
+    // getVersion
+    public int getVersion()
+    {
+        return version;
+    }
+
+    // edit
+    public void edit(int start, int before, int count)
+    {
+        // Queue the edit, the lexer may be using the lines and
+        // checkpoints on another thread
+        synchronized (edits)
+        {
+            edits.add(++version, start, before, count);
+        }
+    }
+
+    // highlight
+    public Tokens highlight(CharSequence text, int version,
+                            int start, int end)
+    {
+        // Catch up with the edits made before the text was taken
+        update(version);
+
+        tokens = new Tokens(version);
+        Lines next = tokens.lines;
+
+        // Widen to whole lines
+        int length = text.length();
+        start = lineStart(text, Math.min(start, length));
+        end = lineEnd(text, Math.min(end, length));
+
+        int state = stateAt(text, start);
+        int index = 0;
+        int line = start;
+        while (line <= end)
+        {
+            int lineEnd = lineEnd(text, line);
+
+            // Find this line in the lines last highlighted
+            while (index < lines.count && lines.starts[index] < line)
+                index++;
+
+            boolean clean = (index < lines.count &&
+                             lines.starts[index] == line &&
+                             lines.ends[index] == lineEnd &&
+                             lines.states[index] == state &&
+                             !lines.dirty[index]);
+
+            // Lex the line, only keeping tokens if it has changed
+            emit = !clean;
+            if (emit)
+                tokens.range(line, lineEnd);
+
+            next.add(line, lineEnd, state);
+            state = lex(text, line, lineEnd, state);
+            line = lineEnd + 1;
+        }
+
+        Tokens result = tokens;
+        tokens = null;
+        emit = false;
+        return result;
+    }
+
+    // update
+    private void update(int version)
+    {
+        synchronized (edits)
+        {
+            // Too many edits to keep, start again
+            if (edits.reset)
+            {
+                lines.clear();
+                checkCount = 0;
+                edits.reset = edits.resetVersion > version;
+            }
+
+            int i = 0;
+            while (i < edits.count && edits.versions[i] <= version)
+            {
+                move(edits.starts[i], edits.befores[i], edits.counts[i]);
+                i++;
+            }
+
+            edits.remove(i);
+        }
+    }
+
+    // move
+    private void move(int start, int before, int count)
+    {
+        // Drop checkpoints after the edit
+        while (checkCount > 0 && checkOffsets[checkCount - 1] > start)
+            checkCount--;
+
+        // Mark lines touched by the edit and move the rest, markdown
+        // headers may be underlined, so mark the lines either side
+        int delta = count - before;
+        for (int i = 0; i < lines.count; i++)
+        {
+            if (lines.ends[i] >= start && lines.starts[i] <= start + before)
+            {
+                lines.dirty[i] = true;
+                if (syntax.lexer == Syntax.MARKDOWN)
+                {
+                    if (i > 0)
+                        lines.dirty[i - 1] = true;
+                    if (i + 1 < lines.count)
+                        lines.dirty[i + 1] = true;
+                }
+            }
+
+            if (lines.starts[i] > start)
+            {
+                lines.starts[i] += delta;
+                lines.ends[i] += delta;
+            }
+        }
+    }
+
+    // stateAt
+    private int stateAt(CharSequence text, int offset)
+    {
+        if (syntax.blockOpens.length == 0)
+            return NORMAL;
+
+        // Find the last checkpoint before the offset
+        int index = Arrays.binarySearch(checkOffsets, 0, checkCount, offset);
+        if (index < 0)
+            index = -index - 2;
+
+        int position = (index < 0)? 0: checkOffsets[index];
+        int state = (index < 0)? NORMAL: checkStates[index];
+        int last = (checkCount == 0)? 0: checkOffsets[checkCount - 1];
+
+        // Scan forward, adding checkpoints past the last one
+        emit = false;
+        while (position < offset)
+        {
+            int lineEnd = lineEnd(text, position);
+            state = lex(text, position, lineEnd, state);
+            position = lineEnd + 1;
+
+            if (position >= last + CHECK_SIZE && position <= offset)
+            {
+                checkpoint(position, state);
+                last = position;
+            }
+        }
+
+        return state;
+    }
+
+    // checkpoint
+    private void checkpoint(int offset, int state)
+    {
+        if (checkCount == checkOffsets.length)
+        {
+            checkOffsets = Arrays.copyOf(checkOffsets, checkCount * 2);
+            checkStates = Arrays.copyOf(checkStates, checkCount * 2);
+        }
+
+        checkOffsets[checkCount] = offset;
+        checkStates[checkCount++] = state;
+    }
+
+    // lex
+    private int lex(CharSequence text, int start, int end, int state)
+    {
+        switch (syntax.lexer)
+        {
+        case Syntax.ORG:
+            lexOrg(text, start, end);
+            return NORMAL;
+
+        case Syntax.MARKDOWN:
+            lexMarkdown(text, start, end);
+            return NORMAL;
+
+        default:
+            return lexCode(text, start, end, state);
+        }
+    }
+
+    // lexCode
+    private int lexCode(CharSequence text, int start, int end, int state)
+    {
+        int i = start;
+        while (i < end)
+        {
+            // Inside a block comment
+            if (state != NORMAL)
+            {
+                String close = syntax.blockCloses[state - 1];
+                int index = indexOf(text, close, i, end);
+                int stop = (index < 0)? end: index + close.length();
+                add(i, stop, syntax.blockColours[state - 1]);
+                if (index >= 0)
+                    state = NORMAL;
+                i = stop;
+                continue;
+            }
+
+            char c = text.charAt(i);
+
+            // Comments
+            if (syntax.ruleChars.indexOf(c) >= 0)
+            {
+                int stop = comment(text, i, start, end);
+                if (stop > i)
+                {
+                    if (stop > end)
+                    {
+                        state = stop - end;
+                        stop = end;
+                    }
+
+                    i = stop;
+                    continue;
+                }
+            }
+
+            // Strings
+            if (syntax.quotes.indexOf(c) >= 0)
+            {
+                int stop = quoted(text, i, end);
+                if (stop > i)
+                {
+                    add(i, stop, syntax.stringColour);
+                    i = stop;
+                    continue;
+                }
+            }
+
+            // Words and numbers
+            if (isWord(c))
+            {
+                int stop = wordEnd(text, i, end);
+                if (Character.isDigit(c))
+                {
+                    if (syntax.numberColour != 0)
+                    {
+                        int number = number(text, i, end);
+                        if (number > i)
+                        {
+                            add(i, number, syntax.numberColour);
+                            stop = number;
+                        }
+                    }
+                }
+
+                // Only look words up if keeping tokens
+                else if (emit)
+                {
+                    int colour = word(text, i, stop);
+                    if (colour != 0)
+                        add(i, stop, colour);
+                }
+
+                i = stop;
+                continue;
+            }
+
+            // Annotations
+            if (c == syntax.annotation && c != 0)
+            {
+                int stop = i + 1;
+                while (stop < end && isLetter(text.charAt(stop)))
+                    stop++;
+
+                if (stop > i + 1 &&
+                    (stop == end || !isWord(text.charAt(stop))))
+                {
+                    add(i, stop, syntax.annotationColour);
+                    i = stop;
+                    continue;
+                }
+            }
+
+            // Variables
+            if (c == syntax.variable && c != 0 && i + 1 < end)
+            {
+                char n = text.charAt(i + 1);
+                int stop = i;
+                if (isWord(n))
+                    stop = wordEnd(text, i + 1, end);
+
+                else if (n == '{' || n == '(')
+                {
+                    int index = indexOf(text, (n == '{')? "}": ")",
+                                        i + 3, end);
+                    if (index > 0)
+                        stop = index + 1;
+                }
+
+                if (stop > i)
+                {
+                    add(i, stop, syntax.variableColour);
+                    i = stop;
+                    continue;
+                }
+            }
+
+            // Hex colours
+            if (c == syntax.hex && c != 0 && i + 1 < end &&
+                isWord(text.charAt(i + 1)))
+            {
+                int stop = wordEnd(text, i + 1, end);
+                if (isHex(text, i + 1, stop))
+                    add(i, stop, syntax.hexColour);
+                i = stop;
+                continue;
+            }
+
+            // Operators
+            if (syntax.operators.indexOf(c) >= 0)
+            {
+                int stop = i + 1;
+                while (stop < end &&
+                       syntax.operators.indexOf(text.charAt(stop)) >= 0)
+                    stop++;
+
+                add(i, stop, syntax.operatorColour);
+                i = stop;
+                continue;
+            }
+
+            i++;
+        }
+
+        return state;
+    }
+
+    // comment
+    private int comment(CharSequence text, int index, int start, int end)
+    {
+        // Block comments, returns past the end, by the state, if the
+        // comment continues on the next line
+        for (int i = 0; i < syntax.blockOpens.length; i++)
+        {
+            String open = syntax.blockOpens[i];
+            if (!startsWith(text, open, index, end))
+                continue;
+
+            String close = syntax.blockCloses[i];
+            int found = indexOf(text, close, index + open.length(), end);
+            int stop = (found < 0)? end: found + close.length();
+            add(index, stop, syntax.blockColours[i]);
+            return (found < 0)? end + i + 1: stop;
+        }
+
+        // Line comments, some only at the start of a word
+        for (int i = 0; i < syntax.lineStarts.length; i++)
+        {
+            if (!startsWith(text, syntax.lineStarts[i], index, end))
+                continue;
+
+            if (syntax.lineWords[i] && index > start &&
+                !Character.isWhitespace(text.charAt(index - 1)))
+                continue;
+
+            add(index, end, syntax.lineColours[i]);
+            return end;
+        }
+
+        return index;
+    }
+
+    // word
+    private int word(CharSequence text, int start, int end)
+    {
+        if (syntax.constantColour != 0 && isConstant(text, start, end))
+            return syntax.constantColour;
+
+        if (syntax.classColour != 0 && end - start > 1 &&
+            isUpper(text.charAt(start)))
+            return syntax.classColour;
+
+        for (int i = 0; i < syntax.words.length; i++)
+            if (syntax.words[i].contains(text, start, end))
+                return syntax.wordColours[i];
+
+        return 0;
+    }
+
+    // lexOrg
+    private void lexOrg(CharSequence text, int start, int end)
+    {
+        // Comment lines
+        if (startsWith(text, "# ", start, end))
+        {
+            add(start, end, syntax.commentColour);
+            return;
+        }
+
+        // Headers and metadata
+        int stars = start;
+        while (stars < end && text.charAt(stars) == '*')
+            stars++;
+        int spaces = stars;
+        while (spaces < end && text.charAt(spaces) == ' ')
+            spaces++;
+
+        if ((stars > start && spaces > stars && spaces < end) ||
+            (startsWith(text, "#+", start, end) && end > start + 2))
+            add(start, end, syntax.headerColour);
+
+        int i = start;
+        while (i < end)
+        {
+            int stop = 0;
+            if (startsWith(text, "@@", i, end))
+            {
+                int index = indexOf(text, "@@", i + 2, end);
+                if (index > 0)
+                {
+                    add(i, index + 2, syntax.commentColour);
+                    i = index + 2;
+                    continue;
+                }
+            }
+
+            if (startsWith(text, "[[", i, end))
+            {
+                int index = indexOf(text, "]]", i + 2, end);
+                if (index > 0)
+                {
+                    add(i, index + 2, syntax.linkColour);
+                    i = index + 2;
+                    continue;
+                }
+            }
+
+            stop = emphasis(text, i, end, ORG_DELIMS, Integer.MAX_VALUE);
+            if (stop > i)
+            {
+                add(i, stop, syntax.emphasisColour);
+                i = stop;
+                continue;
+            }
+
+            i++;
+        }
+    }
+
+    // lexMarkdown
+    private void lexMarkdown(CharSequence text, int start, int end)
+    {
+        // Code blocks
+        if (startsWith(text, "    ", start, end))
+        {
+            int i = start;
+            while (i < end && text.charAt(i) == ' ')
+                i++;
+
+            if (i < end)
+            {
+                add(start, end, syntax.codeColour);
+                return;
+            }
+        }
+
+        // Headers
+        if (isHeader(text, start, end))
+            add(start, end, syntax.headerColour);
+
+        int links = start;
+        int i = start;
+        while (i < end)
+        {
+            char c = text.charAt(i);
+
+            // Inline code
+            if (c == '`')
+            {
+                int index = indexOf(text, "`", i + 2, end);
+                if (index > 0)
+                {
+                    add(i, index + 1, syntax.codeColour);
+                    i = index + 1;
+                    continue;
+                }
+            }
+
+            // Links, emphasis inside them is still highlighted
+            if (i >= links && (c == '[' || (c == '!' && i + 1 < end &&
+                                            text.charAt(i + 1) == '[')))
+            {
+                int stop = link(text, (c == '!')? i + 1: i, end);
+                if (stop > i)
+                {
+                    add(i, stop, syntax.linkColour);
+                    links = stop;
+                }
+            }
+
+            int stop = emphasis(text, i, end, MD_DELIMS, 2);
+            if (stop > i)
+            {
+                add(i, stop, syntax.emphasisColour);
+                i = stop;
+                continue;
+            }
+
+            i++;
+        }
+    }
+
+    // isHeader
+    private boolean isHeader(CharSequence text, int start, int end)
+    {
+        // ATX headers
+        int i = start;
+        while (i < end && text.charAt(i) == '#')
+            i++;
+        int j = i;
+        while (j < end && text.charAt(j) == ' ')
+            j++;
+        if (i > start && j > i && j < end)
+            return true;
+
+        // Text ending in a row of - or =
+        if (isRule(text, start, end) || end == start)
+        {
+            // This is the underline of the line above
+            if (end > start && start > 0)
+            {
+                int above = lineStart(text, start - 1);
+                return above < start - 1;
+            }
+
+            return false;
+        }
+
+        i = end;
+        while (i > start && "-=".indexOf(text.charAt(i - 1)) >= 0)
+            i--;
+        if (i < end && i > start + 1 &&
+            Character.isWhitespace(text.charAt(i - 1)) &&
+            text.charAt(i) == text.charAt(end - 1))
+            return true;
+
+        // Underlined by the line below
+        if (end < text.length())
+        {
+            int below = lineEnd(text, end + 1);
+            return isRule(text, end + 1, below);
+        }
+
+        return false;
+    }
+
+    // isRule
+    private static boolean isRule(CharSequence text, int start, int end)
+    {
+        if (start == end)
+            return false;
+
+        char c = text.charAt(start);
+        if (c != '-' && c != '=')
+            return false;
+
+        for (int i = start; i < end; i++)
+            if (text.charAt(i) != c)
+                return false;
+
+        return true;
+    }
+
+    // link
+    private static int link(CharSequence text, int start, int end)
+    {
+        // Reference definitions, [text]: url
+        int colon = lastIndexOf(text, "]:", start + 2, end);
+        if (colon > 0 && colon + 2 < end && text.charAt(colon + 2) == ' ')
+        {
+            int i = colon + 2;
+            while (i < end && text.charAt(i) == ' ')
+                i++;
+            if (i < end)
+                return end;
+        }
+
+        // [text](url) or [text][ref], taking the last closing bracket
+        for (int close = end - 1; close > start + 2; close--)
+        {
+            char c = text.charAt(close);
+            if (c != ')' && c != ']')
+                continue;
+
+            char open = (c == ')')? '(': '[';
+            for (int i = close - 2; i > start + 1; i--)
+            {
+                if (text.charAt(i) != open)
+                    continue;
+
+                int j = i;
+                while (j > start + 1 && text.charAt(j - 1) == ' ')
+                    j--;
+                if (text.charAt(j - 1) == ']')
+                    return close + 1;
+            }
+        }
+
+        return start;
+    }
+
+    // emphasis
+    private static int emphasis(CharSequence text, int start, int end,
+                                String delims, int max)
+    {
+        char c = text.charAt(start);
+
+        // _text_ and __text__
+        if (c == '_')
+        {
+            if (start > 0 && isWord(text.charAt(start - 1)))
+                return start;
+
+            int length = (startsWith(text, "__", start, end))? 2: 1;
+            for (int n = length; n > 0; n--)
+            {
+                for (int i = start + n + 1; i + n <= end; i++)
+                {
+                    char d = text.charAt(i - 1);
+                    if (!isWord(d) && d != ' ')
+                        break;
+
+                    if (startsWith(text, (n == 2)? "__": "_", i, end) &&
+                        (i + n == end || !isWord(text.charAt(i + n))))
+                        return i + n;
+                }
+            }
+
+            return start;
+        }
+
+        if (delims.indexOf(c) < 0)
+            return start;
+
+        // Delimiters, text, the same delimiters
+        int open = start;
+        while (open < end && open - start < max &&
+               delims.indexOf(text.charAt(open)) >= 0)
+            open++;
+
+        if (open == end || !isWord(text.charAt(open)))
+            return start;
+
+        int i = open;
+        while (i < end && (isWord(text.charAt(i)) || text.charAt(i) == ' '))
+            i++;
+
+        if (!isWord(text.charAt(i - 1)))
+            return start;
+
+        int length = open - start;
+        if (i + length > end)
+            return start;
+
+        for (int j = 0; j < length; j++)
+            if (text.charAt(i + j) != text.charAt(start + j))
+                return start;
+
+        return i + length;
+    }
+
+    // number
+    private static int number(CharSequence text, int start, int end)
+    {
+        // Digits, optional fraction, optional exponent, which must
+        // end on a word boundary
+        int digits = digits(text, start, end);
+        int fraction = digits;
+        if (fraction < end && text.charAt(fraction) == '.')
+            fraction = digits(text, fraction + 1, end);
+
+        int exponent = fraction;
+        if (exponent < end && text.charAt(exponent) == 'e')
+        {
+            int i = exponent + 1;
+            if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-'))
+                i++;
+            int j = digits(text, i, end);
+            if (j > i)
+                exponent = j;
+        }
+
+        for (int stop: new int[] {exponent, fraction, digits})
+            if (isBoundary(text, stop, end))
+                return stop;
+
+        return start;
+    }
+
+    // quoted
+    private static int quoted(CharSequence text, int start, int end)
+    {
+        char quote = text.charAt(start);
+        for (int i = start + 1; i < end; i++)
+        {
+            char c = text.charAt(i);
+            if (c == '\\')
+                i++;
+
+            else if (c == quote)
+                return i + 1;
+        }
+
+        return start;
+    }
+
+    // isConstant
+    private static boolean isConstant(CharSequence text, int start, int end)
+    {
+        if (end - start < 2)
+            return false;
+
+        char c = text.charAt(start);
+        if (isUpper(c))
+        {
+            for (int i = start + 1; i < end; i++)
+            {
+                char d = text.charAt(i);
+                if (!isUpper(d) && !Character.isDigit(d) && d != '_')
+                    return false;
+            }
+
+            return true;
+        }
+
+        if (c == 'k' && end - start > 2 && isUpper(text.charAt(start + 1)))
+        {
+            for (int i = start + 2; i < end; i++)
+                if (text.charAt(i) == '_')
+                    return false;
+
+            return true;
+        }
+
+        return false;
+    }
+
+    // isHex
+    private static boolean isHex(CharSequence text, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+            if (Character.digit(text.charAt(i), 16) < 0)
+                return false;
+
+        return true;
+    }
+
+    // isBoundary
+    private static boolean isBoundary(CharSequence text, int index, int end)
+    {
+        return (index == end || !isWord(text.charAt(index))) !=
+            !isWord(text.charAt(index - 1));
+    }
+
+    // isWord
+    private static boolean isWord(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+            (c >= '0' && c <= '9') || c == '_';
+    }
+
+    // isLetter
+    private static boolean isLetter(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    // isUpper
+    private static boolean isUpper(char c)
+    {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    // digits
+    private static int digits(CharSequence text, int start, int end)
+    {
+        while (start < end && Character.isDigit(text.charAt(start)))
+            start++;
+
+        return start;
+    }
+
+    // wordEnd
+    private static int wordEnd(CharSequence text, int start, int end)
+    {
+        while (start < end && isWord(text.charAt(start)))
+            start++;
+
+        return start;
+    }
+
+    // lineStart
+    private static int lineStart(CharSequence text, int index)
+    {
+        while (index > 0 && text.charAt(index - 1) != '\n')
+            index--;
+
+        return index;
+    }
+
+    // lineEnd
+    private static int lineEnd(CharSequence text, int index)
+    {
+        int length = text.length();
+        while (index < length && text.charAt(index) != '\n')
+            index++;
+
+        return index;
+    }
+
+    // startsWith
+    private static boolean startsWith(CharSequence text, String prefix,
+                                      int start, int end)
+    {
+        if (start + prefix.length() > end)
+            return false;
+
+        for (int i = 0; i < prefix.length(); i++)
+            if (text.charAt(start + i) != prefix.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    // indexOf
+    private static int indexOf(CharSequence text, String string,
+                               int start, int end)
+    {
+        for (int i = start; i + string.length() <= end; i++)
+            if (startsWith(text, string, i, end))
+                return i;
+
+        return -1;
+    }
+
+    // lastIndexOf
+    private static int lastIndexOf(CharSequence text, String string,
+                                   int start, int end)
+    {
+        for (int i = end - string.length(); i >= start; i--)
+            if (startsWith(text, string, i, end))
+                return i;
+
+        return -1;
+    }
+
+    // apply
+    public void apply(Spannable text, Tokens tokens)
+    {
+        // The lines are now highlighted as lexed
+        lines = tokens.lines;
+
+        tokens.kept = 0;
+        tokens.added = 0;
+        tokens.allocated = 0;
+        tokens.removed = 0;
+
+        int index = 0;
+        for (int i = 0; i < tokens.ranges; i++)
+        {
+            int start = tokens.rangeStarts[i];
+            int end = tokens.rangeEnds[i];
+
+            // Tokens in this range
+            int first = index;
+            boolean overlap = false;
+            while (index < tokens.count && tokens.starts[index] <= end)
+            {
+                if (index > first &&
+                    tokens.starts[index] < tokens.ends[index - 1])
+                    overlap = true;
+                index++;
+            }
+
+            ForegroundColorSpan spans[] = (start == end)?
+                new ForegroundColorSpan[0]:
+                text.getSpans(start, end, ForegroundColorSpan.class);
+
+            // Overlapping tokens depend on the order the spans were
+            // added, so replace them all
+            if (overlap)
+            {
+                for (ForegroundColorSpan span: spans)
+                    remove(text, span, tokens);
+
+                for (int j = first; j < index; j++)
+                    add(text, tokens, j);
+
+                continue;
+            }
+
+            // Sort the existing spans by position
+            sort(text, spans);
+
+            // Keep spans that match tokens, remove the rest, and add
+            // spans for tokens that are left
+            int j = 0;
+            int k = first;
+            while (j < spans.length || k < index)
+            {
+                if (k == index || (j < spans.length &&
+                                   (spanStarts[j] < tokens.starts[k] ||
+                                    (spanStarts[j] == tokens.starts[k] &&
+                                     spanEnds[j] < tokens.ends[k]))))
+                    remove(text, spans[j++], tokens);
+
+                else if (j == spans.length ||
+                         spanStarts[j] != tokens.starts[k] ||
+                         spanEnds[j] != tokens.ends[k])
+                    add(text, tokens, k++);
+
+                else if (spans[j].getForegroundColor() == tokens.colours[k])
+                {
+                    tokens.kept++;
+                    j++;
+                    k++;
+                }
+
+                else
+                {
+                    remove(text, spans[j++], tokens);
+                    add(text, tokens, k++);
+                }
+            }
+        }
+    }
+
+    // sort
+    private void sort(Spanned text, ForegroundColorSpan spans[])
+    {
+        if (spanStarts.length < spans.length)
+        {
+            spanStarts = new int[spans.length];
+            spanEnds = new int[spans.length];
+        }
+
+        // Insertion sort, the spans are nearly in order
+        for (int i = 0; i < spans.length; i++)
+        {
+            ForegroundColorSpan span = spans[i];
+            int start = text.getSpanStart(span);
+            int end = text.getSpanEnd(span);
+
+            int j = i;
+            while (j > 0 && (spanStarts[j - 1] > start ||
+                             (spanStarts[j - 1] == start &&
+                              spanEnds[j - 1] > end)))
+            {
+                spans[j] = spans[j - 1];
+                spanStarts[j] = spanStarts[j - 1];
+                spanEnds[j] = spanEnds[j - 1];
+                j--;
+            }
+
+            spans[j] = span;
+            spanStarts[j] = start;
+            spanEnds[j] = end;
+        }
+    }
+
+    // remove
+    private void remove(Spannable text, ForegroundColorSpan span,
+                        Tokens tokens)
+    {
+        text.removeSpan(span);
+        pool(span.getForegroundColor()).put(span);
+        tokens.removed++;
+    }
+
+    // add
+    private void add(Spannable text, Tokens tokens, int index)
+    {
+        ForegroundColorSpan span = pool(tokens.colours[index]).get();
+        if (span == null)
+        {
+            span = new ForegroundColorSpan(tokens.colours[index]);
+            tokens.allocated++;
+        }
+
+        text.setSpan(span, tokens.starts[index], tokens.ends[index],
+                     Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        tokens.added++;
+    }
+
+    // pool
+    private Pool pool(int colour)
+    {
+        for (Pool pool: pools)
+            if (pool.colour == colour)
+                return pool;
+
+        Pool pool = new Pool(colour);
+        pools = Arrays.copyOf(pools, pools.length + 1);
+        pools[pools.length - 1] = pool;
+        return pool;
+    }
+
+    // add
+    private void add(int start, int end, int colour)
+    {
+        if (emit && end > start && colour != 0)
+            tokens.add(start, end, colour);
+    }
+
+    // Tokens
+    public static class Tokens
+    {
+        // Version of the text lexed
+        public final int version;
+
+        // Tokens to highlight
+        public int count;
+        public int starts[] = new int[256];
+        public int ends[] = new int[256];
+        public int colours[] = new int[256];
+
+        // Line ranges that have been lexed again
+        public int ranges;
+        public int rangeStarts[] = new int[64];
+        public int rangeEnds[] = new int[64];
+
+        // Span counts from the last apply
+        public int kept;
+        public int added;
+        public int allocated;
+        public int removed;
+
+        // Lines lexed
+        private final Lines lines = new Lines();
+
+        // Tokens
+        private Tokens(int version)
+        {
+            this.version = version;
+        }
+
+        // add
+        private void add(int start, int end, int colour)
+        {
+            if (count == starts.length)
+            {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                colours = Arrays.copyOf(colours, count * 2);
+            }
+
+            starts[count] = start;
+            ends[count] = end;
+            colours[count++] = colour;
+        }
+
+        // range
+        private void range(int start, int end)
+        {
+            // Join to the last range if adjacent
+            if (ranges > 0 && rangeEnds[ranges - 1] + 1 == start)
+            {
+                rangeEnds[ranges - 1] = end;
+                return;
+            }
+
+            if (ranges == rangeStarts.length)
+            {
+                rangeStarts = Arrays.copyOf(rangeStarts, ranges * 2);
+                rangeEnds = Arrays.copyOf(rangeEnds, ranges * 2);
+            }
+
+            rangeStarts[ranges] = start;
+            rangeEnds[ranges++] = end;
+        }
+    }
+
+    // Pool
+    private static class Pool
+    {
+        int colour;
+        int count;
+        ForegroundColorSpan spans[] = new ForegroundColorSpan[16];
+
+        // Pool
+        Pool(int colour)
+        {
+            this.colour = colour;
+        }
+
+        // get
+        ForegroundColorSpan get()
+        {
+            return (count == 0)? null: spans[--count];
+        }
+
+        // put
+        void put(ForegroundColorSpan span)
+        {
+            if (count == POOL_SIZE)
+                return;
+
+            if (count == spans.length)
+                spans = Arrays.copyOf(spans, count * 2);
+
+            spans[count++] = span;
+        }
+    }
+
+    // Edits
+    private static class Edits
+    {
+        int count;
+        int versions[] = new int[64];
+        int starts[] = new int[64];
+        int befores[] = new int[64];
+        int counts[] = new int[64];
+
+        boolean reset;
+        int resetVersion;
+
+        // add
+        void add(int version, int start, int before, int count)
+        {
+            if (this.count == MAX_EDITS)
+            {
+                reset = true;
+                resetVersion = version;
+                this.count = 0;
+                return;
+            }
+
+            if (this.count == starts.length)
+            {
+                versions = Arrays.copyOf(versions, this.count * 2);
+                starts = Arrays.copyOf(starts, this.count * 2);
+                befores = Arrays.copyOf(befores, this.count * 2);
+                counts = Arrays.copyOf(counts, this.count * 2);
+            }
+
+            versions[this.count] = version;
+            starts[this.count] = start;
+            befores[this.count] = before;
+            counts[this.count++] = count;
+        }
+
+        // remove
+        void remove(int n)
+        {
+            count -= n;
+            System.arraycopy(versions, n, versions, 0, count);
+            System.arraycopy(starts, n, starts, 0, count);
+            System.arraycopy(befores, n, befores, 0, count);
+            System.arraycopy(counts, n, counts, 0, count);
+        }
+    }
+
+    // Lines
+    private static class Lines
+    {
+        int count;
+        int starts[] = new int[64];
+        int ends[] = new int[64];
+        int states[] = new int[64];
+        boolean dirty[] = new boolean[64];
+
+        // clear
+        void clear()
+        {
+            count = 0;
+        }
+
+        // add
+        void add(int start, int end, int state)
+        {
+            if (count == starts.length)
+            {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                states = Arrays.copyOf(states, count * 2);
+                dirty = Arrays.copyOf(dirty, count * 2);
+            }
+
+            starts[count] = start;
+            ends[count] = end;
+            states[count] = state;
+            dirty[count++] = false;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// KeywordSet
+public class KeywordSet
+{
+    public final static String TAG = "KeywordSet";
+
+    // A trie flattened into arrays, the edges from each node are
+    // together and in order
+    private final boolean ignoreCase;
+    private int first[];
+    private int count[];
+    private boolean word[];
+    private char chars[];
+    private int targets[];
+
+    // KeywordSet
+    public KeywordSet(boolean ignoreCase, String... words)
+    {
+        this.ignoreCase = ignoreCase;
+
+        Builder root = new Builder();
+        for (String w: words)
+        {
+            Builder node = root;
+            for (char c: w.toCharArray())
+            {
+                c = ignoreCase? lower(c): c;
+                Builder child = node.children.get(c);
+                if (child == null)
+                {
+                    child = new Builder();
+                    node.children.put(c, child);
+                }
+
+                node = child;
+            }
+
+            node.word = true;
+        }
+
+        // Number the nodes breadth first
+        List<Builder> nodes = new ArrayList<>();
+        nodes.add(root);
+        int edges = 0;
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            Builder node = nodes.get(i);
+            edges += node.children.size();
+            for (Builder child: node.children.values())
+            {
+                child.index = nodes.size();
+                nodes.add(child);
+            }
+        }
+
+        first = new int[nodes.size()];
+        count = new int[nodes.size()];
+        word = new boolean[nodes.size()];
+        chars = new char[edges];
+        targets = new int[edges];
+
+        int edge = 0;
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            Builder node = nodes.get(i);
+            first[i] = edge;
+            count[i] = node.children.size();
+            word[i] = node.word;
+
+            for (Map.Entry<Character, Builder> entry:
+                     node.children.entrySet())
+            {
+                chars[edge] = entry.getKey();
+                targets[edge++] = entry.getValue().index;
+            }
+        }
+    }
+
+    // KeywordSet
+    private KeywordSet(boolean ignoreCase)
+    {
+        this.ignoreCase = ignoreCase;
+    }
+
+    // read
+    public static KeywordSet read(DataInputStream in) throws IOException
+    {
+        KeywordSet set = new KeywordSet(in.readBoolean());
+        int nodes = in.readInt();
+        set.first = new int[nodes];
+        set.count = new int[nodes];
+        set.word = new boolean[nodes];
+        for (int i = 0; i < nodes; i++)
+        {
+            set.first[i] = in.readInt();
+            set.count[i] = in.readInt();
+            set.word[i] = in.readBoolean();
+        }
+
+        int edges = in.readInt();
+        set.chars = new char[edges];
+        set.targets = new int[edges];
+        for (int i = 0; i < edges; i++)
+        {
+            set.chars[i] = in.readChar();
+            set.targets[i] = in.readInt();
+        }
+
+        return set;
+    }
+
+    // write
+    public void write(DataOutputStream out) throws IOException
+    {
+        out.writeBoolean(ignoreCase);
+        out.writeInt(first.length);
+        for (int i = 0; i < first.length; i++)
+        {
+            out.writeInt(first[i]);
+            out.writeInt(count[i]);
+            out.writeBoolean(word[i]);
+        }
+
+        out.writeInt(chars.length);
+        for (int i = 0; i < chars.length; i++)
+        {
+            out.writeChar(chars[i]);
+            out.writeInt(targets[i]);
+        }
+    }
+
+    // contains
+    public boolean contains(CharSequence text, int start, int end)
+    {
+        int node = 0;
+        for (int i = start; i < end; i++)
+        {
+            char c = text.charAt(i);
+            node = next(node, ignoreCase? lower(c): c);
+            if (node < 0)
+                return false;
+        }
+
+        return word[node];
+    }
+
+    // contains
+    public boolean contains(CharSequence text)
+    {
+        return contains(text, 0, text.length());
+    }
+
+    // size
+    public int size()
+    {
+        return first.length;
+    }
+
+    // next
+    private int next(int node, char c)
+    {
+        // Binary search the edges from this node
+        int lo = first[node];
+        int hi = lo + count[node] - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (chars[mid] < c)
+                lo = mid + 1;
+
+            else if (chars[mid] > c)
+                hi = mid - 1;
+
+            else
+                return targets[mid];
+        }
+
+        return -1;
+    }
+
+    // lower
+    private static char lower(char c)
+    {
+        return (c >= 'A' && c <= 'Z')? (char) (c + 'a' - 'A'): c;
+    }
+
+    // Builder
+    private static class Builder
+    {
+        Map<Character, Builder> children = new TreeMap<>();
+        boolean word;
+        int index;
+    }
+}
@@ -0,0 +1,188 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.TextUtils;
+
+// LiteralSearch
+public class LiteralSearch
+{
+    public final static String TAG = "LiteralSearch";
+
+    public final static String IGNORE_CASE = "(?i)";
+
+    public final static int BUFFER_SIZE = 65536;
+
+    private final static String META = "\\^$.|?*+()[]{}";
+
+    private final String text;
+    private final boolean ignoreCase;
+    private final char chars[];
+
+    // Boyer-Moore-Horspool shifts, by the low byte of the character,
+    // so characters that share a byte get the smallest shift
+    private final int shift[] = new int[256];
+
+    private char buffer[];
+
+    // LiteralSearch
+    private LiteralSearch(String text, boolean ignoreCase)
+    {
+        this.text = text;
+        this.ignoreCase = ignoreCase;
+
+        chars = new char[text.length()];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = fold(text.charAt(i));
+
+        int m = chars.length;
+        for (int i = 0; i < shift.length; i++)
+            shift[i] = m;
+        for (int i = 0; i < m - 1; i++)
+            shift[chars[i] & 0xff] = m - 1 - i;
+    }
+
+    // compile
+    public static LiteralSearch compile(String query)
+    {
+        // Queries without metacharacters, apart from a case
+        // insensitive flag at the start, don't need a regex
+        boolean ignoreCase = query.startsWith(IGNORE_CASE);
+        String text = ignoreCase?
+            query.substring(IGNORE_CASE.length()): query;
+
+        if (text.length() == 0)
+            return null;
+
+        for (int i = 0; i < text.length(); i++)
+            if (META.indexOf(text.charAt(i)) >= 0)
+                return null;
+
+        return new LiteralSearch(text, ignoreCase);
+    }
+
+    // getText
+    public String getText()
+    {
+        return text;
+    }
+
+    // isIgnoreCase
+    public boolean isIgnoreCase()
+    {
+        return ignoreCase;
+    }
+
+    // length
+    public int length()
+    {
+        return chars.length;
+    }
+
+    // startsWith
+    public boolean startsWith(LiteralSearch prefix)
+    {
+        return ignoreCase == prefix.ignoreCase &&
+            text.startsWith(prefix.text);
+    }
+
+    // find
+    public void find(CharSequence text, int from, OnMatchListener listener)
+    {
+        // Copy the text into the buffer a chunk at a time, rather than
+        // calling charAt() for each character
+        int m = chars.length;
+        int n = text.length();
+        if (buffer == null)
+            buffer = new char[Math.max(BUFFER_SIZE, m * 2)];
+
+        char last = chars[m - 1];
+        while (from >= 0 && from <= n - m)
+        {
+            int end = Math.min(n, from + buffer.length);
+            int length = end - from;
+            TextUtils.getChars(text, from, end, buffer, 0);
+
+            int i = 0;
+            while (i <= length - m)
+            {
+                char c = fold(buffer[i + m - 1]);
+                if (c == last)
+                {
+                    int j = m - 2;
+                    while (j >= 0 && fold(buffer[i + j]) == chars[j])
+                        j--;
+
+                    // Carry on after a match, which may overlap
+                    if (j < 0)
+                    {
+                        if (!listener.onMatch(from + i))
+                            return;
+
+                        i++;
+                        continue;
+                    }
+                }
+
+                i += shift[c & 0xff];
+            }
+
+            if (end == n)
+                break;
+
+            // Carry on from where the shifts got to
+            from += i;
+        }
+    }
+
+    // matches
+    public boolean matches(CharSequence text, int offset)
+    {
+        if (offset < 0 || offset + chars.length > text.length())
+            return false;
+
+        for (int i = 0; i < chars.length; i++)
+            if (fold(text.charAt(offset + i)) != chars[i])
+                return false;
+
+        return true;
+    }
+
+    // fold
+    private char fold(char c)
+    {
+        // Only ASCII, as a regex without UNICODE_CASE
+        if (ignoreCase && c >= 'A' && c <= 'Z')
+            return (char) (c + 'a' - 'A');
+
+        return c;
+    }
+
+    // OnMatchListener
+    public interface OnMatchListener
+    {
+        // Return false to stop
+        boolean onMatch(int offset);
+    }
+}
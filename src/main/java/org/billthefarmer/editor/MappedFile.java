@@ -0,0 +1,108 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// MappedFile
+public class MappedFile implements Closeable
+{
+    public final static String TAG = "MappedFile";
+
+    public final static int PAGE_SIZE = 1 << 20;
+    public final static int HEAD_SIZE = 8192;
+
+    private FileInputStream stream;
+    private FileChannel channel;
+    private long size;
+
+    private MappedByteBuffer page;
+    private long start;
+
+    // MappedFile
+    public MappedFile(File file) throws IOException
+    {
+        stream = new FileInputStream(file);
+        channel = stream.getChannel();
+        size = channel.size();
+    }
+
+    // size
+    public long size()
+    {
+        return size;
+    }
+
+    // page
+    public ByteBuffer page(long position) throws IOException
+    {
+        // Reuse current page if it starts here
+        if (page != null && start == position)
+        {
+            page.clear();
+            page.limit((int) Math.min(PAGE_SIZE, size - position));
+            return page;
+        }
+
+        long length = Math.min(PAGE_SIZE, size - position);
+        page = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        start = position;
+
+        return page;
+    }
+
+    // head
+    public byte[] head()
+    {
+        byte bytes[] = new byte[(int) Math.min(HEAD_SIZE, size)];
+
+        try
+        {
+            page(0).get(bytes);
+        }
+
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+
+        return bytes;
+    }
+
+    // close
+    @Override
+    public void close() throws IOException
+    {
+        page = null;
+        channel.close();
+        stream.close();
+    }
+}
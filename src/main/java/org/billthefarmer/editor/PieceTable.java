@@ -0,0 +1,494 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.GetChars;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// PieceTable
+public class PieceTable implements GetChars
+{
+    public final static String TAG = "PieceTable";
+
+    public final static int CHUNK_SIZE = 4096;
+
+    // The original text is never copied or changed, inserted text is
+    // appended to the add buffer, and the document is a tree of
+    // pieces of the two. The tree is never changed either, edits
+    // copy the path to the root, so a snapshot is just the root.
+    private final CharSequence original;
+    private final AddBuffer added;
+    private final Random random;
+    private Node root;
+
+    // PieceTable
+    public PieceTable(CharSequence text)
+    {
+        original = text;
+        added = new AddBuffer();
+        random = new Random();
+
+        if (text.length() > 0)
+            root = new Node(false, 0, text.length(), random.nextInt(),
+                            null, null);
+    }
+
+    // PieceTable
+    private PieceTable(PieceTable table)
+    {
+        original = table.original;
+        added = table.added;
+        random = table.random;
+        root = table.root;
+    }
+
+    // snapshot
+    public PieceTable snapshot()
+    {
+        return new PieceTable(this);
+    }
+
+    // length
+    @Override
+    public int length()
+    {
+        return size(root);
+    }
+
+    // pieces
+    public int pieces()
+    {
+        return count(root);
+    }
+
+    // charAt
+    @Override
+    public char charAt(int index)
+    {
+        if (index < 0 || index >= length())
+            throw new IndexOutOfBoundsException("index " + index);
+
+        Node node = root;
+        while (true)
+        {
+            int left = size(node.left);
+            if (index < left)
+                node = node.left;
+
+            else if (index < left + node.length)
+                return node.charAt(index - left);
+
+            else
+            {
+                index -= left + node.length;
+                node = node.right;
+            }
+        }
+    }
+
+    // getChars
+    @Override
+    public void getChars(int start, int end, char dest[], int offset)
+    {
+        if (start < 0 || end > length() || start > end)
+            throw new IndexOutOfBoundsException(start + ", " + end);
+
+        getChars(root, start, end, dest, offset);
+    }
+
+    // subSequence
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        char chars[] = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    // toString
+    @Override
+    public String toString()
+    {
+        return subSequence(0, length()).toString();
+    }
+
+    // prefix
+    public int prefix(PieceTable table)
+    {
+        // Length of the text at the start that comes from the same
+        // places in the buffers in both tables, so it must be the same
+        if (original != table.original || added != table.added)
+            return 0;
+
+        List<Node> these = pieces(root, new ArrayList<>());
+        List<Node> those = pieces(table.root, new ArrayList<>());
+        return common(these, those, false);
+    }
+
+    // suffix
+    public int suffix(PieceTable table)
+    {
+        // The same at the end
+        if (original != table.original || added != table.added)
+            return 0;
+
+        List<Node> these = pieces(root, new ArrayList<>());
+        List<Node> those = pieces(table.root, new ArrayList<>());
+        Collections.reverse(these);
+        Collections.reverse(those);
+        return common(these, those, true);
+    }
+
+    // common
+    private static int common(List<Node> these, List<Node> those,
+                              boolean reverse)
+    {
+        // Walk both lists of pieces while they point at the same text,
+        // the pieces may be split in different places
+        int i = 0;
+        int j = 0;
+        int a = 0;
+        int b = 0;
+        int common = 0;
+        while (i < these.size() && j < those.size())
+        {
+            Node x = these.get(i);
+            Node y = those.get(j);
+            int from = reverse? x.start + x.length - a: x.start + a;
+            int to = reverse? y.start + y.length - b: y.start + b;
+            if (x.add != y.add || from != to)
+                break;
+
+            int step = Math.min(x.length - a, y.length - b);
+            common += step;
+            a += step;
+            b += step;
+
+            if (a == x.length)
+            {
+                i++;
+                a = 0;
+            }
+
+            if (b == y.length)
+            {
+                j++;
+                b = 0;
+            }
+        }
+
+        return common;
+    }
+
+    // pieces
+    private static List<Node> pieces(Node node, List<Node> list)
+    {
+        // In order
+        while (node != null)
+        {
+            pieces(node.left, list);
+            list.add(node);
+            node = node.right;
+        }
+
+        return list;
+    }
+
+    // insert
+    public void insert(int index, CharSequence text)
+    {
+        replace(index, index, text, 0, text.length());
+    }
+
+    // delete
+    public void delete(int start, int end)
+    {
+        replace(start, end, "", 0, 0);
+    }
+
+    // replace
+    public void replace(int start, int end, CharSequence text,
+                        int textStart, int textEnd)
+    {
+        if (start < 0 || end > length() || start > end)
+            throw new IndexOutOfBoundsException(start + ", " + end);
+
+        Node pair[] = split(root, start);
+        Node left = pair[0];
+        Node right = split(pair[1], end - start)[1];
+
+        if (textEnd > textStart)
+        {
+            int length = textEnd - textStart;
+            int position = added.length();
+            added.append(text, textStart, textEnd);
+
+            // Extend the last piece if it ends at the end of the add
+            // buffer, which it will while typing
+            Node last = last(left);
+            if (last != null && last.add &&
+                last.start + last.length == position)
+                left = extendLast(left, length);
+
+            else
+                left = merge(left, new Node(true, position, length,
+                                            random.nextInt(), null, null));
+        }
+
+        root = merge(left, right);
+    }
+
+    // getChars
+    private void getChars(Node node, int start, int end,
+                          char dest[], int offset)
+    {
+        while (node != null && start < end)
+        {
+            int left = size(node.left);
+            if (start < left)
+            {
+                getChars(node.left, start, Math.min(end, left),
+                         dest, offset);
+                offset += Math.min(end, left) - start;
+                start = left;
+            }
+
+            if (start >= end)
+                return;
+
+            int right = left + node.length;
+            if (start < right)
+            {
+                int from = start - left;
+                int to = Math.min(end, right) - left;
+                node.getChars(from, to, dest, offset);
+                offset += to - from;
+                start = left + to;
+            }
+
+            // Continue down the right subtree
+            start -= right;
+            end -= right;
+            node = node.right;
+        }
+    }
+
+    // split
+    private Node[] split(Node node, int index)
+    {
+        if (node == null)
+            return new Node[] {null, null};
+
+        int left = size(node.left);
+        if (index <= left)
+        {
+            Node pair[] = split(node.left, index);
+            pair[1] = node.with(pair[1], node.right);
+            return pair;
+        }
+
+        if (index >= left + node.length)
+        {
+            Node pair[] = split(node.right, index - left - node.length);
+            pair[0] = node.with(node.left, pair[0]);
+            return pair;
+        }
+
+        // Split this piece in two
+        int offset = index - left;
+        Node head = new Node(node.add, node.start, offset,
+                             node.priority, node.left, null);
+        Node tail = new Node(node.add, node.start + offset,
+                             node.length - offset, random.nextInt(),
+                             null, null);
+        return new Node[] {head, merge(tail, node.right)};
+    }
+
+    // merge
+    private static Node merge(Node left, Node right)
+    {
+        if (left == null)
+            return right;
+
+        if (right == null)
+            return left;
+
+        if (left.priority > right.priority)
+            return left.with(left.left, merge(left.right, right));
+
+        return right.with(merge(left, right.left), right.right);
+    }
+
+    // last
+    private static Node last(Node node)
+    {
+        if (node == null)
+            return null;
+
+        while (node.right != null)
+            node = node.right;
+
+        return node;
+    }
+
+    // extendLast
+    private Node extendLast(Node node, int length)
+    {
+        if (node.right == null)
+            return new Node(node.add, node.start, node.length + length,
+                            node.priority, node.left, null);
+
+        return node.with(node.left, extendLast(node.right, length));
+    }
+
+    // size
+    private static int size(Node node)
+    {
+        return (node == null)? 0: node.size;
+    }
+
+    // count
+    private static int count(Node node)
+    {
+        return (node == null)? 0: 1 + count(node.left) + count(node.right);
+    }
+
+    // Node
+    private class Node
+    {
+        final boolean add;
+        final int start;
+        final int length;
+        final int priority;
+        final Node left;
+        final Node right;
+        final int size;
+
+        // Node
+        Node(boolean add, int start, int length, int priority,
+             Node left, Node right)
+        {
+            this.add = add;
+            this.start = start;
+            this.length = length;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+
+            size = size(left) + length + size(right);
+        }
+
+        // with
+        Node with(Node left, Node right)
+        {
+            return new Node(add, start, length, priority, left, right);
+        }
+
+        // charAt
+        char charAt(int index)
+        {
+            return add? added.charAt(start + index):
+                original.charAt(start + index);
+        }
+
+        // getChars
+        void getChars(int from, int to, char dest[], int offset)
+        {
+            if (add)
+                added.getChars(start + from, start + to, dest, offset);
+
+            else if (original instanceof GetChars)
+                ((GetChars) original).getChars(start + from, start + to,
+                                               dest, offset);
+
+            else if (original instanceof String)
+                ((String) original).getChars(start + from, start + to,
+                                             dest, offset);
+
+            else
+                for (int i = from; i < to; i++)
+                    dest[offset++] = original.charAt(start + i);
+        }
+    }
+
+    // AddBuffer
+    private static class AddBuffer
+    {
+        // Chunks are never reallocated, so text appended before a
+        // snapshot can be read safely by another thread
+        private char chunks[][] = new char[16][];
+        private int length;
+
+        // length
+        int length()
+        {
+            return length;
+        }
+
+        // charAt
+        char charAt(int index)
+        {
+            return chunks[index / CHUNK_SIZE][index % CHUNK_SIZE];
+        }
+
+        // append
+        void append(CharSequence text, int start, int end)
+        {
+            for (int i = start; i < end; i++)
+            {
+                int chunk = length / CHUNK_SIZE;
+                if (chunk == chunks.length)
+                {
+                    char grown[][] = new char[chunks.length * 2][];
+                    System.arraycopy(chunks, 0, grown, 0, chunks.length);
+                    chunks = grown;
+                }
+
+                if (chunks[chunk] == null)
+                    chunks[chunk] = new char[CHUNK_SIZE];
+
+                chunks[chunk][length % CHUNK_SIZE] = text.charAt(i);
+                length++;
+            }
+        }
+
+        // getChars
+        void getChars(int start, int end, char dest[], int offset)
+        {
+            while (start < end)
+            {
+                int index = start % CHUNK_SIZE;
+                int count = Math.min(end - start, CHUNK_SIZE - index);
+                System.arraycopy(chunks[start / CHUNK_SIZE], index,
+                                 dest, offset, count);
+                start += count;
+                offset += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Replacer
+public class Replacer
+{
+    public final static String TAG = "Replacer";
+
+    public final static int BUFFER_SIZE = 65536;
+
+    private final Pattern pattern;
+    private final LiteralSearch literal;
+
+    // The replacement, split into text and group numbers
+    private final List<Object> parts = new ArrayList<>();
+
+    private char buffer[] = new char[BUFFER_SIZE];
+
+    // Replacer
+    public Replacer(Pattern pattern, String replacement)
+    {
+        this.pattern = pattern;
+        literal = LiteralSearch.compile(pattern.pattern());
+
+        // A literal query has no groups apart from the whole match
+        int groups = (literal == null)?
+            pattern.matcher("").groupCount(): 0;
+        parse(replacement, groups);
+    }
+
+    // replace
+    public Result replace(CharSequence text)
+    {
+        // Build the text from the first match to the last, with the
+        // matches replaced, so it can go in with one edit
+        Result result = new Result();
+        StringBuilder builder = new StringBuilder();
+
+        if (literal != null)
+        {
+            int length = literal.length();
+            literal.find(text, 0, (offset) ->
+            {
+                // Leave out overlapping matches, as a regex would
+                if (result.count > 0 && offset < result.end)
+                    return true;
+
+                append(builder, text, result, offset);
+                for (Object part: parts)
+                {
+                    if (part instanceof String)
+                        builder.append((String) part);
+
+                    else
+                        copy(builder, text, offset, offset + length);
+                }
+
+                result.end = offset + length;
+                return true;
+            });
+        }
+
+        else
+        {
+            Matcher matcher = pattern.matcher(text);
+            while (matcher.find())
+            {
+                append(builder, text, result, matcher.start());
+                for (Object part: parts)
+                {
+                    if (part instanceof String)
+                        builder.append((String) part);
+
+                    else
+                    {
+                        int group = (Integer) part;
+                        if (matcher.start(group) >= 0)
+                            copy(builder, text, matcher.start(group),
+                                 matcher.end(group));
+                    }
+                }
+
+                result.end = matcher.end();
+            }
+        }
+
+        result.text = builder;
+        return result;
+    }
+
+    // append
+    private void append(StringBuilder builder, CharSequence text,
+                        Result result, int start)
+    {
+        // Copy the text between this match and the last one
+        if (result.count++ == 0)
+        {
+            result.start = start;
+            result.end = start;
+        }
+
+        copy(builder, text, result.end, start);
+    }
+
+    // copy
+    private void copy(StringBuilder builder, CharSequence text,
+                      int start, int end)
+    {
+        while (start < end)
+        {
+            int size = Math.min(end - start, buffer.length);
+            TextUtils.getChars(text, start, start + size, buffer, 0);
+            builder.append(buffer, 0, size);
+            start += size;
+        }
+    }
+
+    // parse
+    private void parse(String replacement, int groups)
+    {
+        // As Matcher.appendReplacement(), $n is a group and a
+        // backslash quotes the next character
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < replacement.length(); i++)
+        {
+            char c = replacement.charAt(i);
+            if (c == '\\')
+            {
+                if (++i == replacement.length())
+                    throw new IllegalArgumentException
+                        ("Character to be escaped is missing");
+
+                builder.append(replacement.charAt(i));
+            }
+
+            else if (c == '$')
+            {
+                if (++i == replacement.length() ||
+                    !Character.isDigit(replacement.charAt(i)))
+                    throw new IllegalArgumentException
+                        ("Illegal group reference");
+
+                // Take as many digits as make a valid group
+                int group = replacement.charAt(i) - '0';
+                if (group > groups)
+                    throw new IndexOutOfBoundsException
+                        ("No group " + group);
+
+                while (i + 1 < replacement.length() &&
+                       Character.isDigit(replacement.charAt(i + 1)))
+                {
+                    int next = group * 10 + replacement.charAt(i + 1) - '0';
+                    if (next > groups)
+                        break;
+
+                    group = next;
+                    i++;
+                }
+
+                if (builder.length() > 0)
+                    parts.add(builder.toString());
+                builder.setLength(0);
+                parts.add(group);
+            }
+
+            else
+                builder.append(c);
+        }
+
+        if (builder.length() > 0)
+            parts.add(builder.toString());
+    }
+
+    // Result
+    public static class Result
+    {
+        // The text from start to end is to be replaced with text
+        public int start;
+        public int end;
+        public int count;
+        public CharSequence text;
+    }
+}
@@ -0,0 +1,373 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// SearchEngine
+public class SearchEngine
+{
+    public final static String TAG = "SearchEngine";
+
+    public final static int MAX_PATTERNS = 16;
+    public final static int MAX_SPANS = 1024;
+
+    // Compiled patterns, dropping the least recently used
+    private final Map<String, Pattern> patterns =
+        new LinkedHashMap<String, Pattern>(MAX_PATTERNS, 0.75f, true)
+        {
+            // removeEldestEntry
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,
+                                                Pattern> eldest)
+            {
+                return size() > MAX_PATTERNS;
+            }
+        };
+
+    // The matches are found in the background, and only changed on
+    // the UI thread
+    private volatile Matches matches = new Matches(null, null);
+    private volatile boolean valid;
+
+    // Changes when the matches do
+    private int version;
+
+    // Spans for the matches in view, from spanFirst to spanLast,
+    // and spans not in use
+    private final int colour;
+    private final Deque<BackgroundColorSpan> spans = new ArrayDeque<>();
+    private final Deque<BackgroundColorSpan> pool = new ArrayDeque<>();
+    private int spanFirst;
+    private int spanLast;
+    private int spanVersion;
+
+    // Counts from the last highlight
+    public int added;
+    public int removed;
+
+    // SearchEngine
+    public SearchEngine(int colour)
+    {
+        this.colour = colour;
+    }
+
+    // edit
+    public void edit()
+    {
+        // The text has changed, so the matches are out of date
+        valid = false;
+    }
+
+    // isCurrent
+    public boolean isCurrent(String query)
+    {
+        return valid && query.equals(matches.query);
+    }
+
+    // search
+    public Matches search(CharSequence text, String query)
+    {
+        // This may run in the background, so it leaves the current
+        // matches alone
+        Matches last = matches;
+        if (valid && query.equals(last.query))
+            return last;
+
+        // A literal query that has grown can only match where the
+        // shorter one did
+        LiteralSearch search = LiteralSearch.compile(query);
+        Matches result = new Matches(query, search);
+        if (search != null)
+        {
+            if (valid && last.literal != null &&
+                search.startsWith(last.literal))
+                result.narrow(text, last);
+
+            else
+                result.scan(text);
+        }
+
+        else
+            result.match(text, pattern(query));
+
+        return result;
+    }
+
+    // apply
+    public void apply(Matches matches)
+    {
+        if (this.matches != matches)
+            version++;
+
+        this.matches = matches;
+        valid = true;
+    }
+
+    // count
+    public int count()
+    {
+        return matches.count;
+    }
+
+    // start
+    public int start(int match)
+    {
+        return matches.starts[match];
+    }
+
+    // end
+    public int end(int match)
+    {
+        return matches.ends[match];
+    }
+
+    // next
+    public int next(int offset)
+    {
+        // First match at or after the offset, or the first one
+        int match = matches.search(matches.starts, offset);
+        return (match < matches.count)? match: 0;
+    }
+
+    // previous
+    public int previous(int offset)
+    {
+        // Last match before the offset, or the last one
+        int count = matches.count;
+        int match = next(offset);
+        if (match == 0 && count > 0 && matches.starts[0] < offset)
+            return count - 1;
+
+        return (match > 0)? match - 1: count - 1;
+    }
+
+    // highlight
+    public void highlight(Spannable text, int start, int end)
+    {
+        // Only the matches in view have spans, matches don't overlap
+        // so the ends are in order too
+        int first = matches.search(matches.ends, start + 1);
+        int last = Math.min(matches.search(matches.starts, end),
+                            first + MAX_SPANS);
+        added = 0;
+        removed = 0;
+
+        if (spanVersion != version || last <= spanFirst ||
+            first >= spanLast)
+        {
+            unhighlight(text);
+            spanVersion = version;
+            spanFirst = first;
+            spanLast = first;
+        }
+
+        // Drop the spans that have gone out of view, and add the
+        // ones that have come into it
+        for (; spanFirst < first && spanFirst < spanLast; spanFirst++)
+            release(text, spans.pollFirst());
+        for (; spanLast > last && spanLast > spanFirst; spanLast--)
+            release(text, spans.pollLast());
+
+        if (spanFirst == spanLast)
+        {
+            spanFirst = first;
+            spanLast = first;
+        }
+
+        while (spanFirst > first)
+            spans.addFirst(acquire(text, --spanFirst));
+        while (spanLast < last)
+            spans.addLast(acquire(text, spanLast++));
+    }
+
+    // unhighlight
+    public void unhighlight(Spannable text)
+    {
+        while (!spans.isEmpty())
+            release(text, spans.pollFirst());
+
+        spanFirst = 0;
+        spanLast = 0;
+    }
+
+    // acquire
+    private BackgroundColorSpan acquire(Spannable text, int match)
+    {
+        BackgroundColorSpan span = pool.isEmpty()?
+            new BackgroundColorSpan(colour): pool.pollFirst();
+
+        // Empty spans aren't allowed
+        if (end(match) > start(match))
+            text.setSpan(span, start(match), end(match),
+                         Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        added++;
+        return span;
+    }
+
+    // release
+    private void release(Spannable text, BackgroundColorSpan span)
+    {
+        text.removeSpan(span);
+        pool.addFirst(span);
+        removed++;
+    }
+
+    // pattern
+    private synchronized Pattern pattern(String query)
+    {
+        Pattern pattern = patterns.get(query);
+        if (pattern == null)
+        {
+            pattern = Pattern.compile(query, Pattern.MULTILINE);
+            patterns.put(query, pattern);
+        }
+
+        return pattern;
+    }
+
+    // grow
+    private static int[] grow(int array[])
+    {
+        int result[] = new int[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    // Matches
+    public static class Matches
+    {
+        private final String query;
+        private final LiteralSearch literal;
+
+        // Every place a literal query is found, which may overlap
+        private int found[] = new int[16];
+        private int foundCount;
+
+        // The matches, in order
+        private int starts[] = new int[16];
+        private int ends[] = new int[16];
+        private int count;
+
+        // Whether this narrowed the matches before
+        public boolean narrowed;
+
+        // Matches
+        private Matches(String query, LiteralSearch literal)
+        {
+            this.query = query;
+            this.literal = literal;
+        }
+
+        // match
+        private void match(CharSequence text, Pattern pattern)
+        {
+            Matcher matcher = pattern.matcher(text);
+            while (matcher.find())
+                add(matcher.start(), matcher.end());
+        }
+
+        // scan
+        private void scan(CharSequence text)
+        {
+            literal.find(text, 0, (offset) ->
+            {
+                if (foundCount == found.length)
+                    found = grow(found);
+                found[foundCount++] = offset;
+                return true;
+            });
+
+            select();
+        }
+
+        // narrow
+        private void narrow(CharSequence text, Matches last)
+        {
+            found = new int[Math.max(last.foundCount, 16)];
+            for (int i = 0; i < last.foundCount; i++)
+                if (literal.matches(text, last.found[i]))
+                    found[foundCount++] = last.found[i];
+
+            narrowed = true;
+            select();
+        }
+
+        // select
+        private void select()
+        {
+            // Leave out overlapping matches, as a regex would
+            int end = 0;
+            for (int i = 0; i < foundCount; i++)
+            {
+                if (found[i] >= end)
+                {
+                    end = found[i] + literal.length();
+                    add(found[i], end);
+                }
+            }
+        }
+
+        // add
+        private void add(int start, int end)
+        {
+            if (count == starts.length)
+            {
+                starts = grow(starts);
+                ends = grow(ends);
+            }
+
+            starts[count] = start;
+            ends[count++] = end;
+        }
+
+        // search
+        private int search(int array[], int offset)
+        {
+            // First index at or after the offset
+            int lo = 0;
+            int hi = count;
+            while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (array[mid] < offset)
+                    lo = mid + 1;
+
+                else
+                    hi = mid;
+            }
+
+            return lo;
+        }
+    }
+}
@@ -0,0 +1,620 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Syntax
+public class Syntax
+{
+    public final static String TAG = "Syntax";
+
+    public final static String SYNTAX = "syntax";
+    public final static String SUFFIX = ".syntax";
+    public final static String CACHE = ".bin";
+
+    // Bump if the cached form changes
+    public final static int FORMAT = 1;
+
+    public final static int CODE     = 0;
+    public final static int ORG      = 1;
+    public final static int MARKDOWN = 2;
+
+    private static Map<String, Syntax> syntaxes;
+
+    String name;
+    String extensions[] = new String[0];
+    boolean fallback;
+    int lexer;
+
+    // Code lexer rules, a colour of zero turns a rule off
+    String blockOpens[] = new String[0];
+    String blockCloses[] = new String[0];
+    int blockColours[] = new int[0];
+    String lineStarts[] = new String[0];
+    boolean lineWords[] = new boolean[0];
+    int lineColours[] = new int[0];
+    String ruleChars = "";
+
+    String quotes = "";
+    int stringColour;
+    String operators = "";
+    int operatorColour;
+    int numberColour;
+    int constantColour;
+    int classColour;
+    char annotation;
+    int annotationColour;
+    char variable;
+    int variableColour;
+    char hex;
+    int hexColour;
+
+    KeywordSet words[] = new KeywordSet[0];
+    int wordColours[] = new int[0];
+
+    // Markup lexer colours
+    int headerColour;
+    int emphasisColour;
+    int linkColour;
+    int codeColour;
+    int commentColour;
+
+    // Syntax
+    private Syntax()
+    {
+    }
+
+    // getName
+    public String getName()
+    {
+        return name;
+    }
+
+    // forExtension
+    public static Syntax forExtension(Context context, String ext)
+    {
+        for (Syntax syntax: getSyntaxes(context).values())
+            for (String e: syntax.extensions)
+                if (e.equalsIgnoreCase(ext))
+                    return syntax;
+
+        return null;
+    }
+
+    // getDefault
+    public static Syntax getDefault(Context context)
+    {
+        for (Syntax syntax: getSyntaxes(context).values())
+            if (syntax.fallback)
+                return syntax;
+
+        return null;
+    }
+
+    // getSyntaxes
+    public static synchronized Map<String, Syntax> getSyntaxes(Context context)
+    {
+        if (syntaxes != null)
+            return syntaxes;
+
+        long start = System.currentTimeMillis();
+        syntaxes = new LinkedHashMap<>();
+        File cache = new File(context.getCacheDir(), SYNTAX);
+        cache.mkdirs();
+
+        // Built in definitions
+        try
+        {
+            for (String name: context.getAssets().list(SYNTAX))
+            {
+                if (!name.endsWith(SUFFIX))
+                    continue;
+
+                try (InputStream in = context.getAssets()
+                     .open(SYNTAX + File.separator + name))
+                {
+                    load(name, in, cache);
+                }
+
+                catch (Exception e)
+                {
+                    Log.e(TAG, name, e);
+                }
+            }
+        }
+
+        catch (Exception e)
+        {
+            Log.e(TAG, SYNTAX, e);
+        }
+
+        // Definitions added by the user replace built in ones with
+        // the same file name
+        File dir = context.getExternalFilesDir(SYNTAX);
+        File files[] = (dir == null)? null: dir.listFiles();
+        if (files != null)
+        {
+            for (File file: files)
+            {
+                if (!file.getName().endsWith(SUFFIX))
+                    continue;
+
+                try (InputStream in = new FileInputStream(file))
+                {
+                    load(file.getName(), in, cache);
+                }
+
+                catch (Exception e)
+                {
+                    Log.e(TAG, file.getName(), e);
+                }
+            }
+        }
+
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, "Loaded " + syntaxes.keySet() + " in " +
+                  (System.currentTimeMillis() - start) + "ms");
+
+        return syntaxes;
+    }
+
+    // load
+    private static void load(String name, InputStream in, File cache)
+        throws IOException
+    {
+        // Read the definition and check it against the cached form
+        byte bytes[] = readBytes(in);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        File file = new File(cache, name + CACHE);
+        Syntax syntax = read(file, crc.getValue());
+        if (syntax == null)
+        {
+            syntax = parse(new String(bytes, "UTF-8"));
+            write(syntax, file, crc.getValue());
+
+            if (BuildConfig.DEBUG)
+                Log.d(TAG, "Compiled " + name);
+        }
+
+        syntaxes.put(name, syntax);
+    }
+
+    // parse
+    public static Syntax parse(String text)
+    {
+        Syntax syntax = new Syntax();
+        List<String> list = null;
+        int colour = 0;
+        boolean ignoreCase = false;
+
+        for (String line: text.split("\n"))
+        {
+            // Word lists are indented under a words line
+            if (list != null && !line.isEmpty() &&
+                Character.isWhitespace(line.charAt(0)))
+            {
+                list.addAll(Arrays.asList(line.trim().split("\\s+")));
+                continue;
+            }
+
+            if (list != null)
+            {
+                syntax.addWords(list, colour, ignoreCase);
+                list = null;
+            }
+
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String args[] = line.split("\\s+");
+            try
+            {
+                switch (args[0])
+                {
+                case "name":
+                    syntax.name = args[1];
+                    break;
+
+                case "extensions":
+                    syntax.extensions =
+                        Arrays.copyOfRange(args, 1, args.length);
+                    break;
+
+                case "default":
+                    syntax.fallback = true;
+                    break;
+
+                case "lexer":
+                    syntax.lexer = lexer(args[1]);
+                    break;
+
+                case "block":
+                    syntax.addBlock(args[1], args[2], colour(args[3]));
+                    break;
+
+                case "line":
+                    syntax.addLine(args[1], colour(args[2]),
+                                   args.length > 3 && "word".equals(args[3]));
+                    break;
+
+                case "string":
+                    syntax.quotes = args[1];
+                    syntax.stringColour = colour(args[2]);
+                    break;
+
+                case "operator":
+                    syntax.operators = args[1];
+                    syntax.operatorColour = colour(args[2]);
+                    break;
+
+                case "number":
+                    syntax.numberColour = colour(args[1]);
+                    break;
+
+                case "constant":
+                    syntax.constantColour = colour(args[1]);
+                    break;
+
+                case "class":
+                    syntax.classColour = colour(args[1]);
+                    break;
+
+                case "annotation":
+                    syntax.annotation = args[1].charAt(0);
+                    syntax.annotationColour = colour(args[2]);
+                    break;
+
+                case "variable":
+                    syntax.variable = args[1].charAt(0);
+                    syntax.variableColour = colour(args[2]);
+                    break;
+
+                case "hex":
+                    syntax.hex = args[1].charAt(0);
+                    syntax.hexColour = colour(args[2]);
+                    break;
+
+                case "words":
+                    list = new ArrayList<>();
+                    colour = colour(args[1]);
+                    ignoreCase = args.length > 2 &&
+                        "ignore-case".equals(args[2]);
+                    break;
+
+                case "header":
+                    syntax.headerColour = colour(args[1]);
+                    break;
+
+                case "emphasis":
+                    syntax.emphasisColour = colour(args[1]);
+                    break;
+
+                case "link":
+                    syntax.linkColour = colour(args[1]);
+                    break;
+
+                case "code":
+                    syntax.codeColour = colour(args[1]);
+                    break;
+
+                case "comment":
+                    syntax.commentColour = colour(args[1]);
+                    break;
+
+                default:
+                    Log.w(TAG, "Unknown rule: " + line);
+                    break;
+                }
+            }
+
+            catch (Exception e)
+            {
+                Log.w(TAG, "Bad rule: " + line);
+            }
+        }
+
+        if (list != null)
+            syntax.addWords(list, colour, ignoreCase);
+
+        return syntax;
+    }
+
+    // addBlock
+    private void addBlock(String open, String close, int colour)
+    {
+        int n = blockOpens.length;
+        blockOpens = Arrays.copyOf(blockOpens, n + 1);
+        blockCloses = Arrays.copyOf(blockCloses, n + 1);
+        blockColours = Arrays.copyOf(blockColours, n + 1);
+        blockOpens[n] = open;
+        blockCloses[n] = close;
+        blockColours[n] = colour;
+        ruleChars += open.charAt(0);
+    }
+
+    // addLine
+    private void addLine(String start, int colour, boolean word)
+    {
+        int n = lineStarts.length;
+        lineStarts = Arrays.copyOf(lineStarts, n + 1);
+        lineWords = Arrays.copyOf(lineWords, n + 1);
+        lineColours = Arrays.copyOf(lineColours, n + 1);
+        lineStarts[n] = start;
+        lineWords[n] = word;
+        lineColours[n] = colour;
+        ruleChars += start.charAt(0);
+    }
+
+    // addWords
+    private void addWords(List<String> list, int colour, boolean ignoreCase)
+    {
+        int n = words.length;
+        words = Arrays.copyOf(words, n + 1);
+        wordColours = Arrays.copyOf(wordColours, n + 1);
+        words[n] = new KeywordSet(ignoreCase, list.toArray(new String[0]));
+        wordColours[n] = colour;
+    }
+
+    // lexer
+    private static int lexer(String name)
+    {
+        switch (name)
+        {
+        case "org":
+            return ORG;
+
+        case "markdown":
+            return MARKDOWN;
+
+        default:
+            return CODE;
+        }
+    }
+
+    // colour
+    private static int colour(String name)
+    {
+        switch (name.toLowerCase(Locale.ROOT))
+        {
+        case "black":
+            return Color.BLACK;
+        case "blue":
+            return Color.BLUE;
+        case "cyan":
+            return Color.CYAN;
+        case "dkgray":
+            return Color.DKGRAY;
+        case "gray":
+            return Color.GRAY;
+        case "green":
+            return Color.GREEN;
+        case "ltgray":
+            return Color.LTGRAY;
+        case "magenta":
+            return Color.MAGENTA;
+        case "red":
+            return Color.RED;
+        case "white":
+            return Color.WHITE;
+        case "yellow":
+            return Color.YELLOW;
+        default:
+            return Color.parseColor(name);
+        }
+    }
+
+    // read
+    private static Syntax read(File file, long crc)
+    {
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream in = new DataInputStream
+             (new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != FORMAT || in.readLong() != crc)
+                return null;
+
+            Syntax syntax = new Syntax();
+            syntax.name = in.readUTF();
+            syntax.extensions = readStrings(in);
+            syntax.fallback = in.readBoolean();
+            syntax.lexer = in.readInt();
+
+            syntax.blockOpens = readStrings(in);
+            syntax.blockCloses = readStrings(in);
+            syntax.blockColours = readInts(in);
+            syntax.lineStarts = readStrings(in);
+            syntax.lineWords = new boolean[syntax.lineStarts.length];
+            for (int i = 0; i < syntax.lineWords.length; i++)
+                syntax.lineWords[i] = in.readBoolean();
+            syntax.lineColours = readInts(in);
+            syntax.ruleChars = in.readUTF();
+
+            syntax.quotes = in.readUTF();
+            syntax.stringColour = in.readInt();
+            syntax.operators = in.readUTF();
+            syntax.operatorColour = in.readInt();
+            syntax.numberColour = in.readInt();
+            syntax.constantColour = in.readInt();
+            syntax.classColour = in.readInt();
+            syntax.annotation = in.readChar();
+            syntax.annotationColour = in.readInt();
+            syntax.variable = in.readChar();
+            syntax.variableColour = in.readInt();
+            syntax.hex = in.readChar();
+            syntax.hexColour = in.readInt();
+
+            syntax.words = new KeywordSet[in.readInt()];
+            for (int i = 0; i < syntax.words.length; i++)
+                syntax.words[i] = KeywordSet.read(in);
+            syntax.wordColours = readInts(in);
+
+            syntax.headerColour = in.readInt();
+            syntax.emphasisColour = in.readInt();
+            syntax.linkColour = in.readInt();
+            syntax.codeColour = in.readInt();
+            syntax.commentColour = in.readInt();
+
+            return syntax;
+        }
+
+        catch (Exception e)
+        {
+            Log.w(TAG, file.getName(), e);
+            return null;
+        }
+    }
+
+    // write
+    private static void write(Syntax syntax, File file, long crc)
+    {
+        try (DataOutputStream out = new DataOutputStream
+             (new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            out.writeInt(FORMAT);
+            out.writeLong(crc);
+            out.writeUTF((syntax.name == null)? "": syntax.name);
+            writeStrings(out, syntax.extensions);
+            out.writeBoolean(syntax.fallback);
+            out.writeInt(syntax.lexer);
+
+            writeStrings(out, syntax.blockOpens);
+            writeStrings(out, syntax.blockCloses);
+            writeInts(out, syntax.blockColours);
+            writeStrings(out, syntax.lineStarts);
+            for (boolean word: syntax.lineWords)
+                out.writeBoolean(word);
+            writeInts(out, syntax.lineColours);
+            out.writeUTF(syntax.ruleChars);
+
+            out.writeUTF(syntax.quotes);
+            out.writeInt(syntax.stringColour);
+            out.writeUTF(syntax.operators);
+            out.writeInt(syntax.operatorColour);
+            out.writeInt(syntax.numberColour);
+            out.writeInt(syntax.constantColour);
+            out.writeInt(syntax.classColour);
+            out.writeChar(syntax.annotation);
+            out.writeInt(syntax.annotationColour);
+            out.writeChar(syntax.variable);
+            out.writeInt(syntax.variableColour);
+            out.writeChar(syntax.hex);
+            out.writeInt(syntax.hexColour);
+
+            out.writeInt(syntax.words.length);
+            for (KeywordSet words: syntax.words)
+                words.write(out);
+            writeInts(out, syntax.wordColours);
+
+            out.writeInt(syntax.headerColour);
+            out.writeInt(syntax.emphasisColour);
+            out.writeInt(syntax.linkColour);
+            out.writeInt(syntax.codeColour);
+            out.writeInt(syntax.commentColour);
+        }
+
+        catch (Exception e)
+        {
+            Log.w(TAG, file.getName(), e);
+            file.delete();
+        }
+    }
+
+    // readBytes
+    private static byte[] readBytes(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte buffer[] = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+
+        return out.toByteArray();
+    }
+
+    // readStrings
+    private static String[] readStrings(DataInputStream in)
+        throws IOException
+    {
+        String strings[] = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = in.readUTF();
+
+        return strings;
+    }
+
+    // writeStrings
+    private static void writeStrings(DataOutputStream out, String strings[])
+        throws IOException
+    {
+        out.writeInt(strings.length);
+        for (String string: strings)
+            out.writeUTF(string);
+    }
+
+    // readInts
+    private static int[] readInts(DataInputStream in) throws IOException
+    {
+        int ints[] = new int[in.readInt()];
+        for (int i = 0; i < ints.length; i++)
+            ints[i] = in.readInt();
+
+        return ints;
+    }
+
+    // writeInts
+    private static void writeInts(DataOutputStream out, int ints[])
+        throws IOException
+    {
+        out.writeInt(ints.length);
+        for (int i: ints)
+            out.writeInt(i);
+    }
+}
@@ -0,0 +1,451 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.GetChars;
+import android.text.TextUtils;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+// TextBuffer
+public class TextBuffer implements GetChars
+{
+    public final static String TAG = "TextBuffer";
+
+    public final static String LF = "\n";
+    public final static String CR_LF = "\r\n";
+    public final static String CR = "\r";
+
+    public final static int BUFFER_SIZE = 65536;
+
+    private char chars[];
+    private int length;
+
+    private String newline = LF;
+    private boolean found;
+    private boolean cr;
+
+    // The text counted as it's decoded, so the bytes it encodes to
+    // are known without encoding it
+    private long lines;
+    private long extra;
+    private long pairs;
+
+    // The bytes decoded, to tell if the file changes
+    private final XXHash64 hash = new XXHash64();
+
+    // TextBuffer
+    public TextBuffer()
+    {
+        chars = new char[0];
+    }
+
+    // TextBuffer
+    private TextBuffer(int capacity)
+    {
+        chars = new char[capacity];
+    }
+
+    // getNewline
+    public String getNewline()
+    {
+        return newline;
+    }
+
+    // getSize
+    public long getSize()
+    {
+        return hash.length();
+    }
+
+    // getHash
+    public long getHash()
+    {
+        return hash.digest();
+    }
+
+    // getBytes
+    public long getBytes(String newline, boolean utf8)
+    {
+        // The bytes the text encodes to in UTF-8 or a one byte
+        // character set, counted as DeltaSave counts them, a surrogate
+        // pair is four bytes, or one replaced
+        long bytes = length;
+        if (CR_LF.equals(newline))
+            bytes += lines;
+
+        return utf8? bytes + extra + pairs * 2: bytes - pairs;
+    }
+
+    // length
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    // charAt
+    @Override
+    public char charAt(int index)
+    {
+        if (index >= length)
+            throw new IndexOutOfBoundsException("index " + index);
+
+        return chars[index];
+    }
+
+    // getChars
+    @Override
+    public void getChars(int start, int end, char dest[], int offset)
+    {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException(start + ", " + end);
+
+        System.arraycopy(chars, start, dest, offset, end - start);
+    }
+
+    // subSequence
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException(start + ", " + end);
+
+        return new String(chars, start, end - start);
+    }
+
+    // toString
+    @Override
+    public String toString()
+    {
+        return new String(chars, 0, length);
+    }
+
+    // decode
+    public static TextBuffer decode(MappedFile file, CharsetDecoder decoder,
+                                    OnDecodeListener listener)
+        throws IOException
+    {
+        long size = file.size();
+        TextBuffer text = new TextBuffer(capacity(size, decoder));
+        CharBuffer out = CharBuffer.wrap(text.chars);
+        long position = 0;
+
+        decoder.reset();
+        while (true)
+        {
+            ByteBuffer bytes = (position < size)? file.page(position):
+                ByteBuffer.allocate(0);
+            boolean end = position + bytes.remaining() >= size;
+
+            // A partial character at the end of the page is left to
+            // start the next page
+            out = text.decode(decoder, bytes, out, end);
+            text.hash(bytes);
+            position += bytes.position();
+
+            if (end)
+                break;
+
+            if (listener != null)
+                listener.onDecode(text, out.position());
+        }
+
+        text.finish(out);
+        return text;
+    }
+
+    // decode
+    public static TextBuffer decode(ReadableByteChannel channel,
+                                    CharsetDecoder decoder, long size,
+                                    OnDecodeListener listener)
+        throws IOException
+    {
+        TextBuffer text = new TextBuffer(capacity(size, decoder));
+        CharBuffer out = CharBuffer.wrap(text.chars);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        boolean end = false;
+
+        decoder.reset();
+        while (!end)
+        {
+            end = channel.read(bytes) < 0;
+            bytes.flip();
+            out = text.decode(decoder, bytes, out, end);
+            text.hash(bytes);
+            bytes.compact();
+
+            if (listener != null && !end)
+                listener.onDecode(text, out.position());
+        }
+
+        text.finish(out);
+        return text;
+    }
+
+    // write
+    public static void write(WritableByteChannel channel, CharSequence text,
+                             String newline, CharsetEncoder encoder)
+        throws IOException
+    {
+        // Encode a chunk at a time into the same buffers, so the
+        // text is never copied whole
+        char buffer[] = new char[BUFFER_SIZE];
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE * 2 + 1);
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 4);
+        int length = text.length();
+
+        encoder.reset();
+        for (int start = 0; start < length; start += BUFFER_SIZE)
+        {
+            int count = Math.min(BUFFER_SIZE, length - start);
+            TextUtils.getChars(text, start, start + count, buffer, 0);
+
+            if (LF.equals(newline))
+                chars.put(buffer, 0, count);
+
+            // Put back the original line endings
+            else
+            {
+                int from = 0;
+                for (int i = 0; i < count; i++)
+                {
+                    if (buffer[i] == '\n')
+                    {
+                        chars.put(buffer, from, i - from);
+                        chars.put(newline);
+                        from = i + 1;
+                    }
+                }
+
+                chars.put(buffer, from, count - from);
+            }
+
+            chars.flip();
+            encode(channel, encoder, chars, bytes, false);
+
+            // Keep half a surrogate pair for the next chunk
+            chars.compact();
+        }
+
+        chars.flip();
+        encode(channel, encoder, chars, bytes, true);
+        while (encoder.flush(bytes) == CoderResult.OVERFLOW)
+            drain(channel, bytes);
+        drain(channel, bytes);
+    }
+
+    // encode
+    private static void encode(WritableByteChannel channel,
+                               CharsetEncoder encoder, CharBuffer chars,
+                               ByteBuffer bytes, boolean end)
+        throws IOException
+    {
+        while (true)
+        {
+            CoderResult result = encoder.encode(chars, bytes, end);
+            if (result.isOverflow())
+                drain(channel, bytes);
+
+            else if (result.isUnderflow())
+                break;
+
+            else
+                result.throwException();
+        }
+    }
+
+    // drain
+    private static void drain(WritableByteChannel channel, ByteBuffer bytes)
+        throws IOException
+    {
+        bytes.flip();
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+        bytes.clear();
+    }
+
+    // hash
+    private void hash(ByteBuffer bytes)
+    {
+        // Just the bytes decoded, the rest are decoded next time
+        ByteBuffer decoded = bytes.duplicate();
+        decoded.flip();
+        hash.update(decoded);
+    }
+
+    // OnDecodeListener
+    public interface OnDecodeListener
+    {
+        // Called on the decoding thread, the text up to length is
+        // complete and won't change
+        abstract void onDecode(TextBuffer text, int length);
+    }
+
+    // capacity
+    private static int capacity(long size, CharsetDecoder decoder)
+    {
+        if (size <= 0)
+            return BUFFER_SIZE;
+
+        return (int) Math.min(Integer.MAX_VALUE - BUFFER_SIZE,
+                              size * decoder.averageCharsPerByte()) + 16;
+    }
+
+    // decode
+    private CharBuffer decode(CharsetDecoder decoder, ByteBuffer bytes,
+                              CharBuffer out, boolean end)
+    {
+        CoderResult result;
+        do
+        {
+            int from = out.position();
+            result = decoder.decode(bytes, out, end);
+            out.position(convert(from, out.position()));
+
+            if (result.isOverflow())
+                out = grow(out);
+        }
+        while (result.isOverflow());
+
+        if (end)
+        {
+            do
+            {
+                int from = out.position();
+                result = decoder.flush(out);
+                out.position(convert(from, out.position()));
+
+                if (result.isOverflow())
+                    out = grow(out);
+            }
+            while (result.isOverflow());
+        }
+
+        length = out.position();
+        return out;
+    }
+
+    // convert
+    private int convert(int from, int to)
+    {
+        // Convert CR LF and CR to LF in place, noting which was found
+        // first
+        int index = from;
+        for (int i = from; i < to; i++)
+        {
+            char c = chars[i];
+            switch (c)
+            {
+            case '\r':
+                if (cr)
+                    found(CR);
+                chars[index++] = '\n';
+                cr = true;
+                lines++;
+                break;
+
+            case '\n':
+                if (cr)
+                    found(CR_LF);
+
+                else
+                {
+                    found(LF);
+                    chars[index++] = c;
+                    lines++;
+                }
+                cr = false;
+                break;
+
+            default:
+                if (cr)
+                    found(CR);
+                if (c >= 0x80)
+                    count(c, index);
+                chars[index++] = c;
+                cr = false;
+                break;
+            }
+        }
+
+        return index;
+    }
+
+    // count
+    private void count(char c, int index)
+    {
+        // A low surrogate makes a pair with a high one before it
+        if (Character.isLowSurrogate(c))
+        {
+            if (index > 0 && Character.isHighSurrogate(chars[index - 1]))
+                pairs++;
+        }
+
+        else if (!Character.isSurrogate(c))
+            extra += (c < 0x800)? 1: 2;
+    }
+
+    // found
+    private void found(String ending)
+    {
+        if (!found)
+        {
+            newline = ending;
+            found = true;
+        }
+    }
+
+    // grow
+    private CharBuffer grow(CharBuffer out)
+    {
+        int position = out.position();
+        char grown[] = new char[chars.length + Math.max(chars.length / 2,
+                                                        BUFFER_SIZE)];
+        System.arraycopy(chars, 0, grown, 0, position);
+        chars = grown;
+
+        out = CharBuffer.wrap(chars);
+        out.position(position);
+        return out;
+    }
+
+    // finish
+    private void finish(CharBuffer out)
+    {
+        if (cr)
+            found(CR);
+
+        length = out.position();
+        cr = false;
+    }
+}
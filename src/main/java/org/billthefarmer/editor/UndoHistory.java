@@ -0,0 +1,548 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.Editable;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// UndoHistory
+public class UndoHistory
+{
+    public final static String TAG = "UndoHistory";
+
+    public final static int MAX_BYTES = 4 * 1024 * 1024;
+    public final static int MAX_SPILL = 64 * 1024 * 1024;
+    public final static int COALESCE_DELAY = 1000;
+
+    // Rough size of an entry without its text
+    public final static int ENTRY_BYTES = 128;
+
+    // Entries to undo, oldest first, and to redo, next first
+    private final Deque<Entry> undo = new ArrayDeque<>();
+    private final Deque<Entry> redo = new ArrayDeque<>();
+
+    // Entries being spilled, oldest first, kept until written
+    private final Deque<Entry> pending = new ArrayDeque<>();
+
+    private final int maxBytes;
+    private final File file;
+
+    // The file is only written and read on this thread
+    private final ExecutorService writer;
+
+    // Entries spilled to the file, the one being written, and a
+    // count of clears, so writes from before one are forgotten
+    private int spilled;
+    private Entry writing;
+    private int generation;
+    private long bytes;
+
+    private String deleted;
+    private boolean applying;
+
+    // UndoHistory
+    public UndoHistory(int maxBytes, File file)
+    {
+        // Entries that don't fit in memory are spilled to the file,
+        // or dropped if there isn't one
+        this.maxBytes = maxBytes;
+        this.file = file;
+
+        writer = (file != null)? Executors.newSingleThreadExecutor(): null;
+    }
+
+    // close
+    public void close()
+    {
+        clear();
+
+        // The file is only for this history, remove it after any
+        // writing
+        if (writer != null)
+        {
+            writer.execute(() -> file.delete());
+            writer.shutdown();
+        }
+    }
+
+    // canUndo
+    public synchronized boolean canUndo()
+    {
+        return !undo.isEmpty() || !pending.isEmpty() || spilled > 0;
+    }
+
+    // canRedo
+    public boolean canRedo()
+    {
+        return !redo.isEmpty();
+    }
+
+    // bytes
+    public long bytes()
+    {
+        return bytes;
+    }
+
+    // entries
+    public synchronized int entries()
+    {
+        return undo.size() + redo.size() + pending.size() + spilled;
+    }
+
+    // clear
+    public synchronized void clear()
+    {
+        undo.clear();
+        redo.clear();
+        bytes = 0;
+        deleted = null;
+
+        // Forget what is being spilled, and empty the file after
+        // any writing
+        if (spilled > 0 || !pending.isEmpty() || writing != null)
+        {
+            pending.clear();
+            generation++;
+            writer.execute(() -> truncate());
+        }
+
+        spilled = 0;
+    }
+
+    // before
+    public void before(CharSequence s, int start, int count)
+    {
+        // Keep the text about to be replaced, from beforeTextChanged()
+        if (!applying)
+            deleted = TextUtils.substring(s, start, start + count);
+    }
+
+    // edit
+    public void edit(CharSequence s, int start, int before, int count)
+    {
+        // Record the edit, from onTextChanged()
+        if (applying || deleted == null || deleted.length() != before)
+            return;
+
+        String inserted = TextUtils.substring(s, start, start + count);
+        String deleted = this.deleted;
+        this.deleted = null;
+        if (before == 0 && count == 0)
+            return;
+
+        for (Entry entry: redo)
+            bytes -= entry.bytes();
+        redo.clear();
+
+        // Add to the last entry while typing
+        long time = System.currentTimeMillis();
+        Entry last = undo.peekLast();
+        if (last != null && last.open)
+        {
+            long size = last.bytes();
+            if (time - last.time < COALESCE_DELAY &&
+                last.coalesce(start, deleted, inserted))
+            {
+                last.time = time;
+                bytes += last.bytes() - size;
+                trim();
+                return;
+            }
+
+            close(last);
+        }
+
+        Entry entry = new Entry(start, deleted, inserted, time);
+        undo.addLast(entry);
+        bytes += entry.bytes();
+        trim();
+    }
+
+    // undo
+    public int undo(Editable text)
+    {
+        // Returns where to put the cursor, or -1
+        if (undo.isEmpty() && canUndo())
+            unspill();
+
+        Entry entry = undo.pollLast();
+        if (entry == null)
+            return -1;
+
+        close(entry);
+        redo.addFirst(entry);
+        apply(text, entry.start, entry.inserted, entry.deleted);
+
+        // Drop the furthest redo entries if too big
+        while (bytes > maxBytes && redo.size() > 1)
+            bytes -= redo.pollLast().bytes();
+
+        return entry.start + entry.deleted.length();
+    }
+
+    // redo
+    public int redo(Editable text)
+    {
+        Entry entry = redo.pollFirst();
+        if (entry == null)
+            return -1;
+
+        undo.addLast(entry);
+        apply(text, entry.start, entry.deleted, entry.inserted);
+        trim();
+
+        return entry.start + entry.inserted.length();
+    }
+
+    // close
+    private void close(Entry entry)
+    {
+        long size = entry.bytes();
+        entry.close();
+        bytes += entry.bytes() - size;
+    }
+
+    // apply
+    private void apply(Editable text, int start, CharSequence from,
+                       CharSequence to)
+    {
+        // Don't record the change being made
+        applying = true;
+        try
+        {
+            text.replace(start, start + from.length(), to);
+        }
+
+        finally
+        {
+            applying = false;
+        }
+    }
+
+    // trim
+    private void trim()
+    {
+        // Spill or drop the oldest entries, but keep the last one in
+        // memory unless it alone is too big
+        while (bytes > maxBytes && !undo.isEmpty())
+        {
+            Entry entry = undo.peekFirst();
+            if (undo.size() == 1 && entry.bytes() <= maxBytes)
+                break;
+
+            undo.pollFirst();
+            close(entry);
+            bytes -= entry.bytes();
+
+            if (file != null)
+                spill(entry);
+        }
+    }
+
+    // spill
+    private void spill(Entry entry)
+    {
+        // Keep the entry until it's written in the background, so
+        // edits don't wait for the disk
+        int generation;
+        synchronized (this)
+        {
+            pending.addLast(entry);
+            generation = this.generation;
+        }
+
+        writer.execute(() -> write(generation));
+    }
+
+    // write
+    private void write(int generation)
+    {
+        // Write the oldest entry being spilled, not if cleared since
+        Entry entry;
+        synchronized (this)
+        {
+            if (generation != this.generation || pending.isEmpty())
+                return;
+
+            entry = pending.peekFirst();
+            writing = entry;
+        }
+
+        // Each record is the start, the deleted and inserted text as
+        // UTF-8, and its own length, so it can be read from the end
+        byte deleted[] = entry.deleted.toString()
+            .getBytes(StandardCharsets.UTF_8);
+        byte inserted[] = entry.inserted.toString()
+            .getBytes(StandardCharsets.UTF_8);
+        int length = 12 + deleted.length + inserted.length;
+        ByteBuffer buffer = ByteBuffer.allocate(length + 4);
+        buffer.putInt(entry.start);
+        buffer.putInt(deleted.length);
+        buffer.put(deleted);
+        buffer.putInt(inserted.length);
+        buffer.put(inserted);
+        buffer.putInt(length);
+
+        boolean reset = false;
+        boolean written = false;
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw"))
+        {
+            // Forget the oldest history rather than fill the disk
+            if (journal.length() + buffer.capacity() > MAX_SPILL)
+            {
+                journal.setLength(0);
+                reset = true;
+            }
+
+            journal.seek(journal.length());
+            journal.write(buffer.array());
+            written = true;
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        synchronized (this)
+        {
+            writing = null;
+            if (generation != this.generation)
+                return;
+
+            pending.remove(entry);
+            if (reset)
+                spilled = 0;
+            if (written)
+                spilled++;
+        }
+    }
+
+    // unspill
+    private void unspill()
+    {
+        // Take back the newest entry being spilled, unless it's being
+        // written, otherwise read the last one written, after any
+        // writing
+        Entry entry = null;
+        synchronized (this)
+        {
+            if (!pending.isEmpty() && pending.peekLast() != writing)
+                entry = pending.pollLast();
+        }
+
+        if (entry == null)
+        {
+            try
+            {
+                entry = writer.submit(() -> read()).get();
+            }
+
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        if (entry == null)
+            return;
+
+        undo.addFirst(entry);
+        bytes += entry.bytes();
+    }
+
+    // read
+    private Entry read()
+    {
+        // Called on the writer thread
+        synchronized (this)
+        {
+            if (spilled == 0)
+                return null;
+        }
+
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw"))
+        {
+            long end = journal.length() - 4;
+            journal.seek(end);
+            int length = journal.readInt();
+            byte record[] = new byte[length];
+            journal.seek(end - length);
+            journal.readFully(record);
+            journal.setLength(end - length);
+
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            int start = buffer.getInt();
+            String deleted = string(buffer);
+            String inserted = string(buffer);
+
+            Entry entry = new Entry(start, deleted, inserted, 0);
+            entry.close();
+
+            synchronized (this)
+            {
+                spilled--;
+            }
+
+            return entry;
+        }
+
+        catch (Exception e)
+        {
+            // Give up on the rest
+            e.printStackTrace();
+            truncate();
+
+            synchronized (this)
+            {
+                spilled = 0;
+            }
+
+            return null;
+        }
+    }
+
+    // truncate
+    private void truncate()
+    {
+        // Called on the writer thread, keep the file, so the name
+        // stays this history's
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw"))
+        {
+            journal.setLength(0);
+        }
+
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    // string
+    private static String string(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        String string = new String(buffer.array(), buffer.position(),
+                                   length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    // Entry
+    private static class Entry
+    {
+        private int start;
+        private CharSequence deleted;
+        private CharSequence inserted;
+        private long time;
+
+        // Open entries have builders, so typing can be added
+        private boolean open = true;
+
+        // Entry
+        private Entry(int start, String deleted, String inserted,
+                      long time)
+        {
+            this.start = start;
+            this.deleted = new StringBuilder(deleted);
+            this.inserted = new StringBuilder(inserted);
+            this.time = time;
+
+            // A new line ends a run of typing
+            if (inserted.indexOf('\n') >= 0)
+                close();
+        }
+
+        // coalesce
+        private boolean coalesce(int start, String deleted, String inserted)
+        {
+            StringBuilder d = (StringBuilder) this.deleted;
+            StringBuilder i = (StringBuilder) this.inserted;
+            if (inserted.indexOf('\n') >= 0)
+                return false;
+
+            // Typing, or replacing the end of what was typed, as
+            // keyboards do with the word being composed
+            if (start >= this.start && start <= this.start + i.length() &&
+                start + deleted.length() == this.start + i.length())
+            {
+                i.setLength(start - this.start);
+                i.append(inserted);
+                return true;
+            }
+
+            // Deleting backwards past what was typed
+            if (inserted.isEmpty() && i.length() == 0 &&
+                start + deleted.length() == this.start)
+            {
+                d.insert(0, deleted);
+                this.start = start;
+                return true;
+            }
+
+            // Deleting forwards
+            if (inserted.isEmpty() && i.length() == 0 &&
+                start == this.start)
+            {
+                d.append(deleted);
+                return true;
+            }
+
+            return false;
+        }
+
+        // close
+        private void close()
+        {
+            // Strings are smaller than builders
+            if (open)
+            {
+                deleted = deleted.toString();
+                inserted = inserted.toString();
+                open = false;
+            }
+        }
+
+        // bytes
+        private long bytes()
+        {
+            if (open)
+                return ENTRY_BYTES +
+                    ((StringBuilder) deleted).capacity() * 2 +
+                    ((StringBuilder) inserted).capacity() * 2;
+
+            return ENTRY_BYTES + (deleted.length() + inserted.length()) * 2;
+        }
+    }
+}
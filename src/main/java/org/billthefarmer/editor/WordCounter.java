@@ -0,0 +1,186 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+// WordCounter
+public class WordCounter
+{
+    public final static String TAG = "WordCounter";
+
+    public final static int BLOCK_SIZE = 4096;
+
+    // The text is split into blocks, each with a count of the words
+    // that start in it
+    private int lengths[] = new int[16];
+    private int counts[] = new int[16];
+    private int blocks;
+
+    private int length;
+    private int words;
+
+    // The last block found, as edits tend to be close together
+    private int last;
+    private int lastStart;
+
+    // words
+    public int words()
+    {
+        return words;
+    }
+
+    // length
+    public int length()
+    {
+        return length;
+    }
+
+    // set
+    public void set(CharSequence text)
+    {
+        blocks = 0;
+        length = 0;
+        words = 0;
+        last = 0;
+        lastStart = 0;
+
+        insert(0, text, 0, text.length());
+    }
+
+    // edit
+    public void edit(CharSequence text, int start, int before, int count)
+    {
+        // Count it all again if out of step
+        if (length - before + count != text.length() || start > length)
+        {
+            set(text);
+            return;
+        }
+
+        // Find the blocks that held the old text, including the one
+        // after, as its first word may now start earlier
+        int first = find(start);
+        int firstStart = lastStart;
+        int end = first;
+        int endStart = firstStart;
+        while (end < blocks && endStart + lengths[end] <= start + before)
+            endStart += lengths[end++];
+        if (end < blocks)
+            endStart += lengths[end++];
+
+        int oldLength = endStart - firstStart;
+        int newLength = oldLength - before + count;
+
+        // Take the old blocks out and count the new text
+        for (int i = first; i < end; i++)
+            words -= counts[i];
+        remove(first, end - first);
+        length -= oldLength;
+        insert(first, text, firstStart, firstStart + newLength);
+
+        last = first;
+        lastStart = firstStart;
+    }
+
+    // find
+    private int find(int offset)
+    {
+        // Walk from the last block found
+        if (offset < lastStart)
+        {
+            last = 0;
+            lastStart = 0;
+        }
+
+        while (last < blocks - 1 && lastStart + lengths[last] <= offset)
+            lastStart += lengths[last++];
+
+        return last;
+    }
+
+    // insert
+    private void insert(int index, CharSequence text, int start, int end)
+    {
+        // Add blocks for the text between start and end
+        int n = (end - start + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (blocks + n > lengths.length)
+        {
+            int size = Math.max(lengths.length * 2, blocks + n);
+            int newLengths[] = new int[size];
+            int newCounts[] = new int[size];
+            System.arraycopy(lengths, 0, newLengths, 0, blocks);
+            System.arraycopy(counts, 0, newCounts, 0, blocks);
+            lengths = newLengths;
+            counts = newCounts;
+        }
+
+        System.arraycopy(lengths, index, lengths, index + n, blocks - index);
+        System.arraycopy(counts, index, counts, index + n, blocks - index);
+        blocks += n;
+
+        for (int i = index; start < end; i++)
+        {
+            int size = Math.min(end - start, BLOCK_SIZE);
+            lengths[i] = size;
+            counts[i] = count(text, start, start + size);
+            words += counts[i];
+            length += size;
+            start += size;
+        }
+    }
+
+    // remove
+    private void remove(int index, int n)
+    {
+        System.arraycopy(lengths, index + n, lengths, index,
+                         blocks - index - n);
+        System.arraycopy(counts, index + n, counts, index,
+                         blocks - index - n);
+        blocks -= n;
+    }
+
+    // count
+    private static int count(CharSequence text, int start, int end)
+    {
+        // Count the starts of runs of word characters, as \w+ would
+        // match them
+        int count = 0;
+        boolean word = start > 0 && isWord(text.charAt(start - 1));
+        for (int i = start; i < end; i++)
+        {
+            boolean w = isWord(text.charAt(i));
+            if (w && !word)
+                count++;
+            word = w;
+        }
+
+        return count;
+    }
+
+    // isWord
+    private static boolean isWord(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+            (c >= '0' && c <= '9') || c == '_';
+    }
+}
@@ -0,0 +1,201 @@
+////////////////////////////////////////////////////////////////////////////////
+//
+//  Editor - Text editor for Android
+//
+//  Copyright © 2026  Bill Farmer
+//
+//  This program is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or
+//  (at your option) any later version.
+//
+//  This program is distributed in the hope that it will be useful,
+//  but WITHOUT ANY WARRANTY; without even the implied warranty of
+//  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//  GNU General Public License for more details.
+//
+//  You should have received a copy of the GNU General Public License
+//  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+//
+//  Bill Farmer	 william j farmer [at] yahoo [dot] co [dot] uk.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package org.billthefarmer.editor;
+
+import android.text.TextUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// XXHash64
+public class XXHash64
+{
+    public final static String TAG = "XXHash64";
+
+    public final static int BUFFER_SIZE = 65536;
+
+    private final static long PRIME1 = 0x9E3779B185EBCA87L;
+    private final static long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private final static long PRIME3 = 0x165667B19E3779F9L;
+    private final static long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private final static long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private final static int STRIPE = 32;
+
+    // Four lanes, and the bytes left over until there's a stripe
+    private long v1 = PRIME1 + PRIME2;
+    private long v2 = PRIME2;
+    private long v3 = 0;
+    private long v4 = -PRIME1;
+    private long total;
+
+    private final ByteBuffer buffer =
+        ByteBuffer.allocate(STRIPE).order(ByteOrder.LITTLE_ENDIAN);
+
+    // hash
+    public static long hash(CharSequence text)
+    {
+        // Hash the characters as UTF-16, a chunk at a time
+        XXHash64 hash = new XXHash64();
+        char chars[] = new char[BUFFER_SIZE];
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 2)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        int length = text.length();
+        for (int start = 0; start < length; start += BUFFER_SIZE)
+        {
+            int count = Math.min(BUFFER_SIZE, length - start);
+            TextUtils.getChars(text, start, start + count, chars, 0);
+
+            bytes.clear();
+            bytes.asCharBuffer().put(chars, 0, count);
+            bytes.limit(count * 2);
+            hash.update(bytes);
+        }
+
+        return hash.digest();
+    }
+
+    // hash
+    public static long hash(File file) throws IOException
+    {
+        // Map the file a page at a time, so it isn't copied
+        XXHash64 hash = new XXHash64();
+        try (MappedFile mapped = new MappedFile(file))
+        {
+            long size = mapped.size();
+            for (long position = 0; position < size;
+                 position += MappedFile.PAGE_SIZE)
+                hash.update(mapped.page(position));
+        }
+
+        return hash.digest();
+    }
+
+    // length
+    public long length()
+    {
+        return total;
+    }
+
+    // update
+    public void update(ByteBuffer input)
+    {
+        ByteBuffer in = input.slice().order(ByteOrder.LITTLE_ENDIAN);
+        input.position(input.limit());
+        total += in.remaining();
+
+        // Finish a stripe started last time
+        if (buffer.position() > 0)
+        {
+            while (buffer.hasRemaining() && in.hasRemaining())
+                buffer.put(in.get());
+
+            if (buffer.hasRemaining())
+                return;
+
+            buffer.flip();
+            stripe(buffer);
+            buffer.clear();
+        }
+
+        while (in.remaining() >= STRIPE)
+            stripe(in);
+
+        buffer.put(in);
+    }
+
+    // digest
+    public long digest()
+    {
+        long h;
+        if (total >= STRIPE)
+        {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) +
+                Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        }
+
+        else
+            h = PRIME5;
+
+        h += total;
+
+        // The bytes left over
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        in.flip();
+        while (in.remaining() >= 8)
+        {
+            h ^= round(0, in.getLong());
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+
+        if (in.remaining() >= 4)
+        {
+            h ^= (in.getInt() & 0xffffffffL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+        }
+
+        while (in.hasRemaining())
+        {
+            h ^= (in.get() & 0xff) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    // stripe
+    private void stripe(ByteBuffer in)
+    {
+        v1 = round(v1, in.getLong());
+        v2 = round(v2, in.getLong());
+        v3 = round(v3, in.getLong());
+        v4 = round(v4, in.getLong());
+    }
+
+    // round
+    private static long round(long acc, long input)
+    {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    // merge
+    private static long merge(long h, long v)
+    {
+        h ^= round(0, v);
+        return h * PRIME1 + PRIME4;
+    }
+}